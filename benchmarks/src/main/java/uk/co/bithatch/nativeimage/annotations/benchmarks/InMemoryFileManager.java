@@ -0,0 +1,97 @@
+package uk.co.bithatch.nativeimage.annotations.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardLocation;
+
+/**
+ * Keeps everything the compiler and processor write in memory, so that the
+ * benchmark measures processing rather than the file system.
+ */
+final class InMemoryFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+    private final Map<String, Output> outputs = new LinkedHashMap<>();
+
+    InMemoryFileManager(JavaFileManager fileManager) {
+        super(fileManager);
+    }
+
+    long resourceBytes() {
+        var total = 0L;
+        for (var output : outputs.values()) {
+            if (output.getKind() == JavaFileObject.Kind.OTHER)
+                total += output.size();
+        }
+        return total;
+    }
+
+    void clear() {
+        outputs.clear();
+    }
+
+    @Override
+    public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind,
+            FileObject sibling) {
+        return output(location, className.replace('.', '/') + kind.extension, kind);
+    }
+
+    @Override
+    public FileObject getFileForOutput(Location location, String packageName, String relativeName,
+            FileObject sibling) {
+        var path = packageName.isEmpty() ? relativeName : packageName.replace('.', '/') + "/" + relativeName;
+        return output(location, path, JavaFileObject.Kind.OTHER);
+    }
+
+    @Override
+    public FileObject getFileForInput(Location location, String packageName, String relativeName) {
+        if (location == StandardLocation.CLASS_OUTPUT) {
+            var path = packageName.isEmpty() ? relativeName : packageName.replace('.', '/') + "/" + relativeName;
+            return output(location, path, JavaFileObject.Kind.OTHER);
+        }
+        return null;
+    }
+
+    private Output output(Location location, String path, JavaFileObject.Kind kind) {
+        return outputs.computeIfAbsent(location.getName() + "/" + path, k -> new Output(path, kind));
+    }
+
+    static final class Output extends SimpleJavaFileObject {
+        private byte[] content;
+
+        Output(String path, Kind kind) {
+            super(URI.create("mem:///" + path), kind);
+        }
+
+        long size() {
+            return content == null ? 0 : content.length;
+        }
+
+        @Override
+        public InputStream openInputStream() throws FileNotFoundException {
+            if (content == null)
+                throw new FileNotFoundException(toUri().toString());
+            return new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return new ByteArrayOutputStream() {
+                @Override
+                public void close() {
+                    content = toByteArray();
+                }
+            };
+        }
+    }
+}
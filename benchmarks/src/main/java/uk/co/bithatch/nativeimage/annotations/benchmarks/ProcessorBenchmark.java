@@ -0,0 +1,137 @@
+package uk.co.bithatch.nativeimage.annotations.benchmarks;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.element.TypeElement;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaFileObject;
+import javax.tools.ToolProvider;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import uk.co.bithatch.nativeimage.annotations.NativeImageProcessor;
+
+/**
+ * Runs {@link NativeImageProcessor} through the system Java compiler over
+ * generated sources. Only annotation processing is performed
+ * (<code>-proc:only</code>), so the time reported is dominated by the
+ * processor. Run with <code>-prof gc</code> to also see allocation rates.
+ * <p>
+ * The auxiliary counters are totals, JMH sums them over all measurement
+ * iterations. Divide by <code>invocations</code> for per invocation values,
+ * which are also printed at the end of each trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g" })
+public class ProcessorBenchmark {
+
+    @Param({ "100", "1000", "10000", "50000" })
+    public int classes;
+
+    @Param({ "false", "true" })
+    public boolean compact;
+
+    private List<JavaFileObject> sources;
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Metrics {
+        public long invocations;
+        public long rounds;
+        public long processorMicros;
+        public long outputBytes;
+
+        private long totalInvocations;
+        private long totalRounds;
+        private long totalProcessorMicros;
+        private long totalOutputBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            invocations = 0;
+            rounds = 0;
+            processorMicros = 0;
+            outputBytes = 0;
+        }
+
+        @TearDown(Level.Iteration)
+        public void accumulate() {
+            totalInvocations += invocations;
+            totalRounds += rounds;
+            totalProcessorMicros += processorMicros;
+            totalOutputBytes += outputBytes;
+        }
+
+        @TearDown(Level.Trial)
+        public void report() {
+            if (totalInvocations > 0 && totalRounds > 0) {
+                System.out.println();
+                System.out.format("Per invocation: %d rounds, %d us processor time per round, %d bytes output%n",
+                        totalRounds / totalInvocations, totalProcessorMicros / totalRounds,
+                        totalOutputBytes / totalInvocations);
+            }
+        }
+    }
+
+    public static class TimedProcessor extends NativeImageProcessor {
+        long rounds;
+        long nanos;
+
+        @Override
+        public boolean process(Set<? extends TypeElement> typeElements, RoundEnvironment roundEnvironment) {
+            var started = System.nanoTime();
+            try {
+                return super.process(typeElements, roundEnvironment);
+            } finally {
+                nanos += System.nanoTime() - started;
+                rounds++;
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void generate() {
+        sources = SyntheticSources.generate(classes);
+    }
+
+    @Benchmark
+    public Object process(Metrics metrics) throws Exception {
+        var compiler = ToolProvider.getSystemJavaCompiler();
+        try (var fileManager = new InMemoryFileManager(compiler.getStandardFileManager(null, null, null))) {
+            var processor = new TimedProcessor();
+            var diagnostics = new DiagnosticCollector<JavaFileObject>();
+            var task = compiler.getTask(null, fileManager, diagnostics,
+                    Arrays.asList("-proc:only", "-Acompact=" + compact, "-Averbosity=off", "-Xlint:-options"), null, sources);
+            task.setProcessors(Arrays.asList(processor));
+            if (!task.call())
+                throw new IllegalStateException("Compilation failed. " + diagnostics.getDiagnostics());
+
+            metrics.invocations++;
+            metrics.rounds += processor.rounds;
+            metrics.processorMicros += TimeUnit.NANOSECONDS.toMicros(processor.nanos);
+            metrics.outputBytes += fileManager.resourceBytes();
+            return fileManager;
+        }
+    }
+}
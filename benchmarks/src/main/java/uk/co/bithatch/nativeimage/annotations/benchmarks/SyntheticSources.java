@@ -0,0 +1,94 @@
+package uk.co.bithatch.nativeimage.annotations.benchmarks;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+
+/**
+ * Generates a tree of annotated source files that exercise a mix of the
+ * processors features. The mix is fixed so results are comparable between
+ * runs.
+ */
+public final class SyntheticSources {
+    static final int CLASSES_PER_PACKAGE = 100;
+
+    private SyntheticSources() {
+    }
+
+    public static List<JavaFileObject> generate(int classes) {
+        var sources = new ArrayList<JavaFileObject>(classes);
+        for (var i = 0; i < classes; i++) {
+            var pkg = "bench.p" + (i / CLASSES_PER_PACKAGE);
+            var name = "C" + i;
+            sources.add(new Source(pkg, name, generate(pkg, name, i)));
+        }
+        return sources;
+    }
+
+    static String generate(String pkg, String name, int i) {
+        var b = new StringBuilder();
+        b.append("package ").append(pkg).append(";\n\n");
+        b.append("import uk.co.bithatch.nativeimage.annotations.*;\n\n");
+
+        b.append("@Reflectable");
+        if (i % 4 == 0)
+            b.append("(all = true)");
+        b.append('\n');
+        if (i % 2 == 0)
+            b.append("@TypeReflect(methods = true, fields = ").append(i % 3 == 0).append(")\n");
+        if (i % 5 == 0)
+            b.append("@OtherReflectables({ @OtherReflectable(java.util.ArrayList.class), @OtherReflectable(value = java.util.HashMap.class, all = true) })\n");
+        if (i % 7 == 0)
+            b.append("@Resource\n");
+        else if (i % 11 == 0)
+            b.append("@Resource(siblings = true)\n");
+        if (i % 13 == 0)
+            b.append("@Bundle(locales = { \"fr\", \"de\" })\n");
+        b.append("public class ").append(name).append(" {\n");
+
+        for (var f = 0; f < 5; f++) {
+            if (f % 2 == 0)
+                b.append("    @Reflectable\n");
+            b.append("    private String field").append(f).append(";\n");
+        }
+        for (var m = 0; m < 5; m++) {
+            if (m % 2 == 0)
+                b.append("    @Reflectable\n");
+            b.append("    public String method").append(m).append("(int a, java.util.List<String> b) { return field")
+                    .append(m).append("; }\n");
+        }
+
+        if (i % 3 == 0) {
+            b.append("    @Reflectable\n");
+            b.append("    @TypeReflect(constructors = true)\n");
+            b.append("    public static class Nested {\n");
+            b.append("        @Reflectable\n");
+            b.append("        private int value;\n");
+            b.append("        @Reflectable\n");
+            b.append("        public int getValue() { return value; }\n");
+            b.append("        public static class Inner {\n");
+            b.append("        }\n");
+            b.append("    }\n");
+        }
+
+        b.append("}\n");
+        return b.toString();
+    }
+
+    static final class Source extends SimpleJavaFileObject {
+        private final String content;
+
+        Source(String pkg, String name, String content) {
+            super(URI.create("string:///" + pkg.replace('.', '/') + "/" + name + Kind.SOURCE.extension), Kind.SOURCE);
+            this.content = content;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return content;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.Filer;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+final class AccessorGenerator {
+    static final String SUFFIX = "Accessors";
+
+    private final NativeImageProcessor processor;
+    private final Filer filer;
+    private final Elements elements;
+    private final Types types;
+    private final Set<String> generated = new HashSet<>();
+
+    AccessorGenerator(NativeImageProcessor processor, Filer filer, Elements elements, Types types) {
+        this.processor = processor;
+        this.filer = filer;
+        this.elements = elements;
+        this.types = types;
+    }
+
+    static boolean accessible(Element element) {
+        for (var e = element; e != null && e.getKind() != ElementKind.PACKAGE; e = e.getEnclosingElement()) {
+            if (e.getModifiers().contains(Modifier.PRIVATE))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Generate the accessors class for the members listed in the reflection
+     * entry of a type, removing those members from the entry as they will no
+     * longer be reached by reflection. Returns the name of the generated class,
+     * or <code>null</code> if there was nothing that could be accessed directly.
+     */
+    String generate(TypeElement type, JsonObject object) {
+        if (!accessible(type))
+            return null;
+
+        var pkg = elements.getPackageOf(type);
+        var methodKeys = keys(object.getAsJsonArray("methods"), true);
+        var fieldKeys = keys(object.getAsJsonArray("fields"), false);
+        var invokers = new ArrayList<ExecutableElement>();
+        var fields = new ArrayList<VariableElement>();
+        for (var member : type.getEnclosedElements()) {
+            /* Anything else, including nested types, is left to reflection */
+            var kind = member.getKind();
+            if (kind != ElementKind.METHOD && kind != ElementKind.CONSTRUCTOR && kind != ElementKind.FIELD)
+                continue;
+            if (!accessible(member) || !signatureAccessible(member, pkg))
+                continue;
+            if (kind == ElementKind.METHOD || (kind == ElementKind.CONSTRUCTOR && constructable(type))) {
+                var exec = (ExecutableElement) member;
+                if (methodKeys.remove(key(exec)))
+                    invokers.add(exec);
+            } else if (kind == ElementKind.FIELD && fieldKeys.remove(member.getSimpleName().toString())) {
+                fields.add((VariableElement) member);
+            }
+        }
+        if (invokers.isEmpty() && fields.isEmpty())
+            return null;
+
+        /* What remains still needs reflection */
+        retain(object, "methods", methodKeys, true);
+        retain(object, "fields", fieldKeys, false);
+
+        var pkgName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+        var binaryName = processor.toClassName(type);
+        var simpleName = (pkgName.isEmpty() ? binaryName : binaryName.substring(pkgName.length() + 1)).replace('$', '_')
+                + SUFFIX;
+        var qualifiedName = pkgName.isEmpty() ? simpleName : pkgName + "." + simpleName;
+        if (!generated.add(qualifiedName))
+            return qualifiedName;
+
+        try {
+            write(type, pkgName, simpleName, invokers, fields);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not generate accessors " + qualifiedName + ".", e);
+        }
+        return qualifiedName;
+    }
+
+    private boolean signatureAccessible(Element member, PackageElement pkg) {
+        /* The generated class names these types in casts, and receives what is returned */
+        if (member instanceof VariableElement)
+            return accessible(member.asType(), pkg);
+        var exec = (ExecutableElement) member;
+        for (var param : exec.getParameters()) {
+            if (!accessible(param.asType(), pkg))
+                return false;
+        }
+        return accessible(exec.getReturnType(), pkg);
+    }
+
+    private boolean accessible(TypeMirror type, PackageElement pkg) {
+        switch (type.getKind()) {
+        case ARRAY:
+            return accessible(((ArrayType) type).getComponentType(), pkg);
+        case DECLARED:
+            for (var arg : ((DeclaredType) type).getTypeArguments()) {
+                if (!accessible(arg, pkg))
+                    return false;
+            }
+            var element = ((DeclaredType) type).asElement();
+            for (var e = element; e != null && e.getKind() != ElementKind.PACKAGE; e = e.getEnclosingElement()) {
+                if (e.getModifiers().contains(Modifier.PRIVATE)
+                        || (!e.getModifiers().contains(Modifier.PUBLIC) && !elements.getPackageOf(e).equals(pkg)))
+                    return false;
+            }
+            return true;
+        case TYPEVAR:
+            return accessible(types.erasure(type), pkg);
+        case WILDCARD:
+            var wildcard = (WildcardType) type;
+            return (wildcard.getExtendsBound() == null || accessible(wildcard.getExtendsBound(), pkg))
+                    && (wildcard.getSuperBound() == null || accessible(wildcard.getSuperBound(), pkg));
+        default:
+            return true;
+        }
+    }
+
+    private static boolean constructable(TypeElement type) {
+        return !type.getModifiers().contains(Modifier.ABSTRACT) && type.getKind() == ElementKind.CLASS
+                && (type.getNestingKind() == NestingKind.TOP_LEVEL || type.getModifiers().contains(Modifier.STATIC));
+    }
+
+    private String key(ExecutableElement exec) {
+        var params = new ArrayList<String>();
+        for (var param : exec.getParameters()) {
+            params.add(processor.toTypeName(param.asType()));
+        }
+        return exec.getSimpleName() + "(" + String.join(",", params) + ")";
+    }
+
+    private static Set<String> keys(JsonArray members, boolean withParameters) {
+        var keys = new HashSet<String>();
+        if (members != null) {
+            for (var member : members) {
+                keys.add(memberKey(member.getAsJsonObject(), withParameters));
+            }
+        }
+        return keys;
+    }
+
+    private static String memberKey(JsonObject member, boolean withParameters) {
+        var name = member.get("name").getAsString();
+        if (!withParameters)
+            return name;
+        var params = new ArrayList<String>();
+        var parameterTypes = member.getAsJsonArray("parameterTypes");
+        if (parameterTypes != null)
+            parameterTypes.forEach(p -> params.add(p.getAsString()));
+        return name + "(" + String.join(",", params) + ")";
+    }
+
+    private static void retain(JsonObject object, String name, Set<String> keys, boolean withParameters) {
+        var members = object.getAsJsonArray(name);
+        if (members == null)
+            return;
+        var remaining = new JsonArray();
+        for (var member : members) {
+            if (keys.contains(memberKey(member.getAsJsonObject(), withParameters)))
+                remaining.add(member);
+        }
+        if (remaining.size() == 0)
+            object.remove(name);
+        else
+            object.add(name, remaining);
+    }
+
+    private void write(TypeElement type, String pkgName, String simpleName, List<ExecutableElement> invokers,
+            List<VariableElement> fields) throws IOException {
+        var typeName = type.getQualifiedName().toString();
+        var source = filer.createSourceFile(pkgName.isEmpty() ? simpleName : pkgName + "." + simpleName, type);
+        try (var w = new PrintWriter(source.openWriter())) {
+            if (!pkgName.isEmpty()) {
+                w.println("package " + pkgName + ";");
+                w.println();
+            }
+            w.println("/* Generated by native-image-annotations */");
+            w.println("@SuppressWarnings({ \"unchecked\", \"rawtypes\" })");
+            w.println("public final class " + simpleName + " {");
+            w.println();
+            w.println("    public interface Invoker {");
+            w.println("        Object invoke(Object target, Object[] args) throws Throwable;");
+            w.println("    }");
+            w.println();
+            w.println("    public interface Getter {");
+            w.println("        Object get(Object target);");
+            w.println("    }");
+            w.println();
+            w.println("    public interface Setter {");
+            w.println("        void set(Object target, Object value);");
+            w.println("    }");
+            w.println();
+            w.println("    private static final java.util.Map<String, Invoker> INVOKERS = new java.util.HashMap<>();");
+            w.println("    private static final java.util.Map<String, Getter> GETTERS = new java.util.HashMap<>();");
+            w.println("    private static final java.util.Map<String, Setter> SETTERS = new java.util.HashMap<>();");
+            w.println();
+            w.println("    static {");
+            for (var exec : invokers) {
+                var key = key(exec);
+                w.println("        INVOKERS.put(" + BundleGenerator.literal(key) + ", " + invoker(typeName, exec) + ");");
+            }
+            for (var field : fields) {
+                var target = field.getModifiers().contains(Modifier.STATIC) ? typeName
+                        : "((" + typeName + ") t)";
+                w.println("        GETTERS.put(" + BundleGenerator.literal(field.getSimpleName().toString()) + ", t -> "
+                        + target + "." + field.getSimpleName() + ");");
+                if (!field.getModifiers().contains(Modifier.FINAL))
+                    w.println("        SETTERS.put(" + BundleGenerator.literal(field.getSimpleName().toString())
+                            + ", (t, v) -> " + target + "." + field.getSimpleName() + " = " + cast(field.asType())
+                            + "v);");
+            }
+            w.println("    }");
+            w.println();
+            w.println("    private " + simpleName + "() {");
+            w.println("    }");
+            w.println();
+            w.println("    public static Invoker invoker(String name, String... parameterTypes) {");
+            w.println("        return INVOKERS.get(name + \"(\" + String.join(\",\", parameterTypes) + \")\");");
+            w.println("    }");
+            w.println();
+            w.println("    public static Getter getter(String name) {");
+            w.println("        return GETTERS.get(name);");
+            w.println("    }");
+            w.println();
+            w.println("    public static Setter setter(String name) {");
+            w.println("        return SETTERS.get(name);");
+            w.println("    }");
+            w.println("}");
+        }
+    }
+
+    private String invoker(String typeName, ExecutableElement exec) {
+        var args = new ArrayList<String>();
+        var params = exec.getParameters();
+        for (var i = 0; i < params.size(); i++) {
+            args.add(cast(params.get(i).asType()) + "a[" + i + "]");
+        }
+        var call = String.join(", ", args);
+        if (exec.getKind() == ElementKind.CONSTRUCTOR)
+            return "(t, a) -> new " + typeName + "(" + call + ")";
+        var target = exec.getModifiers().contains(Modifier.STATIC) ? typeName : "((" + typeName + ") t)";
+        var invocation = target + "." + exec.getSimpleName() + "(" + call + ")";
+        if (exec.getReturnType().getKind() == TypeKind.VOID)
+            return "(t, a) -> { " + invocation + "; return null; }";
+        return "(t, a) -> " + invocation;
+    }
+
+    private String cast(TypeMirror type) {
+        /* Casting to Object would be reported as redundant */
+        var sourceType = types.erasure(type).toString();
+        return sourceType.equals("java.lang.Object") ? "" : "(" + sourceType + ") ";
+    }
+}
@@ -0,0 +1,204 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.StandardLocation;
+
+final class BundleGenerator {
+
+    private final Filer filer;
+    private final Elements elements;
+    private final Messager messager;
+    private final String dirs;
+
+    BundleGenerator(Filer filer, Elements elements, Messager messager, String dirs) {
+        this.filer = filer;
+        this.elements = elements;
+        this.messager = messager;
+        this.dirs = dirs;
+    }
+
+    /**
+     * Generate a <code>ListResourceBundle</code> for each locale of the bundle,
+     * returning the locales that were generated. The root bundle has the same
+     * name as the annotated type, so it cannot be replaced by a class and is
+     * always left as a resource.
+     */
+    Map<String, String> generate(TypeElement element, String bundleName, String[] locales) {
+        var pkg = elements.getPackageOf(element);
+        var pkgName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+        var simpleName = pkgName.isEmpty() ? bundleName : bundleName.substring(pkgName.length() + 1);
+        var files = find(pkgName, simpleName);
+
+        var wanted = new LinkedHashSet<String>();
+        if (locales.length == 0) {
+            wanted.addAll(files.keySet());
+        } else {
+            for (var locale : locales)
+                wanted.add(locale.replace('-', '_'));
+        }
+
+        var generated = new TreeMap<String, String>();
+        for (var locale : wanted) {
+            if (locale.isEmpty())
+                continue;
+            var file = files.get(locale);
+            if (file == null) {
+                messager.printMessage(Kind.WARNING, "[native-image-annotations] No properties found for locale '" + locale
+                        + "' of bundle " + bundleName + ", it will be left as a resource.", element);
+                continue;
+            }
+            if (!locale.matches("[A-Za-z0-9_]+")) {
+                messager.printMessage(Kind.WARNING, "[native-image-annotations] Locale '" + locale + "' of bundle "
+                        + bundleName + " cannot be part of a class name, it will be left as a resource.", element);
+                continue;
+            }
+            var className = bundleName + "_" + locale;
+            try {
+                write(element, pkgName, simpleName + "_" + locale, load(file));
+                generated.put(locale, className);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not generate bundle " + className + ".", e);
+            }
+        }
+        return generated;
+    }
+
+    private Map<String, Path> find(String pkgName, String simpleName) {
+        var directories = new LinkedHashSet<Path>();
+        for (var location : new StandardLocation[] { StandardLocation.CLASS_OUTPUT, StandardLocation.SOURCE_PATH }) {
+            try {
+                var uri = filer.getResource(location, pkgName, simpleName + ".properties").toUri();
+                if ("file".equals(uri.getScheme()))
+                    directories.add(Paths.get(uri).getParent());
+            } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+                /* Not in this location */
+            }
+        }
+        if (dirs != null) {
+            for (var dir : dirs.split("[,\\" + File.pathSeparator + "]")) {
+                if (!dir.isBlank())
+                    directories.add(Paths.get(dir.trim(), pkgName.split("\\.")));
+            }
+        }
+
+        /* The first found for each locale wins, class output first as it is what will be packaged */
+        var found = new TreeMap<String, Path>();
+        var name = Pattern.compile(Pattern.quote(simpleName) + "(?:_(.+))?\\.properties");
+        for (var directory : directories) {
+            if (!Files.isDirectory(directory))
+                continue;
+            try (var list = Files.list(directory)) {
+                list.forEach(file -> {
+                    var matcher = name.matcher(file.getFileName().toString());
+                    if (matcher.matches())
+                        found.putIfAbsent(matcher.group(1) == null ? "" : matcher.group(1), file);
+                });
+            } catch (IOException e) {
+                messager.printMessage(Kind.WARNING,
+                        "[native-image-annotations] Could not list bundles in " + directory + ". " + e.getMessage());
+            }
+        }
+        return found;
+    }
+
+    private static Properties load(Path file) throws IOException {
+        /* As PropertyResourceBundle, UTF-8 first and then ISO-8859-1 */
+        var bytes = Files.readAllBytes(file);
+        var properties = new Properties();
+        var decoder = StandardCharsets.UTF_8.newDecoder().onMalformedInput(CodingErrorAction.REPORT)
+                .onUnmappableCharacter(CodingErrorAction.REPORT);
+        try (var r = new InputStreamReader(new ByteArrayInputStream(bytes), decoder)) {
+            properties.load(r);
+        } catch (CharacterCodingException cce) {
+            properties.clear();
+            try (var r = new InputStreamReader(new ByteArrayInputStream(bytes), StandardCharsets.ISO_8859_1)) {
+                properties.load(r);
+            }
+        }
+        return properties;
+    }
+
+    private void write(TypeElement element, String pkgName, String simpleName, Properties properties) throws IOException {
+        var qualifiedName = pkgName.isEmpty() ? simpleName : pkgName + "." + simpleName;
+        var source = filer.createSourceFile(qualifiedName, element);
+        try (var w = new PrintWriter(source.openWriter())) {
+            if (!pkgName.isEmpty()) {
+                w.println("package " + pkgName + ";");
+                w.println();
+            }
+            w.println("/* Generated by native-image-annotations */");
+            w.println("public final class " + simpleName + " extends java.util.ListResourceBundle {");
+            w.println("    private static final Object[][] CONTENTS = {");
+            for (var key : new TreeMap<>(properties).entrySet()) {
+                w.println("        { " + literal((String) key.getKey()) + ", " + literal((String) key.getValue()) + " },");
+            }
+            w.println("    };");
+            w.println();
+            w.println("    @Override");
+            w.println("    protected Object[][] getContents() {");
+            w.println("        return CONTENTS;");
+            w.println("    }");
+            w.println("}");
+        }
+    }
+
+    static String literal(String value) {
+        var b = new StringBuilder("\"");
+        for (var c : value.toCharArray()) {
+            switch (c) {
+            case '"':
+                b.append("\\\"");
+                break;
+            case '\\':
+                b.append("\\\\");
+                break;
+            case '\n':
+                b.append("\\n");
+                break;
+            case '\r':
+                b.append("\\r");
+                break;
+            case '\t':
+                b.append("\\t");
+                break;
+            default:
+                if (c < 0x20 || c > 0x7e)
+                    b.append(String.format("\\u%04x", (int) c));
+                else
+                    b.append(c);
+            }
+        }
+        return b.append('"').toString();
+    }
+
+    static Set<String> remaining(String[] locales, Map<String, String> generated) {
+        var remaining = new LinkedHashSet<String>();
+        for (var locale : locales) {
+            if (!generated.containsKey(locale.replace('-', '_')))
+                remaining.add(locale);
+        }
+        return remaining;
+    }
+}
@@ -0,0 +1,454 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipFile;
+
+import com.google.gson.JsonObject;
+
+import uk.co.bithatch.nativeimage.annotations.ClassFileReader.AnnotationInfo;
+import uk.co.bithatch.nativeimage.annotations.ClassFileReader.ClassInfo;
+import uk.co.bithatch.nativeimage.annotations.ClassFileReader.MemberInfo;
+
+/**
+ * Finds the annotations of this library in already compiled classes, in jars
+ * and class directories, and writes the same configuration the processor
+ * would have written had it compiled them. The annotations for class
+ * initialization, build options, foreign calls and service providers are left
+ * to the processor, as they need the compiler's view of the types.
+ * <p>
+ * Jars and class files are memory mapped, and only the constant pool and
+ * annotations of each class are read, so no class is ever loaded. The jars,
+ * and the classes in each, are spread across a fork join pool.
+ */
+public final class BytecodeScanner {
+
+    private static final class Found {
+        private final ClassInfo info;
+        private final int input;
+
+        private Found(ClassInfo info, int input) {
+            this.info = info;
+            this.input = input;
+        }
+    }
+
+    /* Annotated classes, package-info and any classes with member classes */
+    private final Map<String, Found> classes = new ConcurrentHashMap<>();
+    private final AtomicInteger scanned = new AtomicInteger();
+    /* Classes that could not be read, with why */
+    private final Queue<String> skipped = new ConcurrentLinkedQueue<>();
+    private final ConfigMerger merger = new ConfigMerger();
+    private final int parallelism;
+
+    public BytecodeScanner() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public BytecodeScanner(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path output = null;
+        var compact = false;
+        var threads = Runtime.getRuntime().availableProcessors();
+        var inputs = new ArrayList<Path>();
+        for (var i = 0; i < args.length; i++) {
+            if ((args[i].equals("-o") || args[i].equals("--output")) && i + 1 < args.length)
+                output = Paths.get(args[++i]);
+            else if (args[i].equals("--threads") && i + 1 < args.length)
+                threads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("--compact"))
+                compact = true;
+            else if (args[i].startsWith("-")) {
+                output = null;
+                break;
+            } else {
+                /* Each argument may also be a class path */
+                for (var path : args[i].split(File.pathSeparator)) {
+                    if (!path.isEmpty())
+                        inputs.add(Paths.get(path));
+                }
+            }
+        }
+        if (output == null || inputs.isEmpty()) {
+            System.err.println("Usage: " + BytecodeScanner.class.getName()
+                    + " -o <directory> [--compact] [--threads <count>] <directory|jar|classpath>...");
+            System.exit(1);
+            return;
+        }
+
+        var started = System.nanoTime();
+        var scanner = new BytecodeScanner(threads);
+        scanner.scan(inputs);
+        var written = scanner.write(output, compact);
+        for (var skipped : scanner.skipped()) {
+            System.err.println("Skipped " + skipped);
+        }
+        System.out.println("Scanned " + scanner.scanned.get() + " classes in " + inputs.size() + " inputs, "
+                + scanner.annotated() + " annotated, " + scanner.skipped.size() + " skipped, wrote " + written.size()
+                + " files to " + output + " in "
+                + (System.nanoTime() - started) / 1000000 + " ms.");
+    }
+
+    /**
+     * Scan jars and class directories. Where the same class is in more than one
+     * input, the first is used, as it would be on a class path.
+     */
+    public void scan(List<Path> inputs) throws IOException {
+        var pool = new ForkJoinPool(parallelism);
+        try {
+            pool.submit(() -> IntStream.range(0, inputs.size()).parallel().forEach(i -> {
+                try {
+                    scan(inputs.get(i), i);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            })).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException)
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            throw new IOException("Failed to scan.", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Write the configuration for everything found so far.
+     */
+    public List<String> write(Path directory, boolean compact) throws IOException {
+        emit();
+        return merger.write(directory, compact);
+    }
+
+    /**
+     * The classes found so far that could not be read, and so are not in the
+     * configuration, each with its location and the reason.
+     */
+    public List<String> skipped() {
+        return skipped.stream().sorted().collect(Collectors.toList());
+    }
+
+    int annotated() {
+        return (int) classes.values().stream().filter(f -> f.info.annotated()).count();
+    }
+
+    private void scan(Path input, int index) throws IOException {
+        if (Files.isDirectory(input)) {
+            List<Path> files;
+            try (var walk = Files.walk(input)) {
+                files = walk.filter(p -> Files.isRegularFile(p) && scannable(input.relativize(p).toString().replace(File.separatorChar, '/')))
+                        .collect(Collectors.toList());
+            }
+            files.parallelStream().forEach(file -> {
+                try (var channel = FileChannel.open(file)) {
+                    found(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), index, file.toString());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } else if (Files.isRegularFile(input)) {
+            scanJar(input, index);
+        }
+        /* Class path entries that do not exist are ignored, as they are by the JVM */
+    }
+
+    private void scanJar(Path jar, int index) throws IOException {
+        MappedByteBuffer map;
+        try (var channel = FileChannel.open(jar)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                scanZipFile(jar, index);
+                return;
+            }
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        map.order(ByteOrder.LITTLE_ENDIAN);
+        var entries = centralDirectory(map);
+        if (entries == null) {
+            /* Zip64, which is rare enough to be left to ZipFile */
+            scanZipFile(jar, index);
+            return;
+        }
+        entries.parallelStream().forEach(entry -> {
+            var location = jar + "!/" + entry.name;
+            ByteBuffer buf;
+            try {
+                buf = entry(map, entry);
+            } catch (IllegalArgumentException e) {
+                skipped.add(location + ", " + e.getMessage());
+                return;
+            }
+            found(buf, index, location);
+        });
+    }
+
+    private void scanZipFile(Path jar, int index) throws IOException {
+        try (var zip = new ZipFile(jar.toFile())) {
+            for (var entries = zip.entries(); entries.hasMoreElements();) {
+                var entry = entries.nextElement();
+                if (scannable(entry.getName())) {
+                    try (var in = zip.getInputStream(entry)) {
+                        found(ByteBuffer.wrap(in.readAllBytes()), index, jar + "!/" + entry.getName());
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean scannable(String name) {
+        /* Only the classes of the base release of a multi-release jar */
+        return name.endsWith(".class") && !name.startsWith("META-INF/") && !name.endsWith("module-info.class");
+    }
+
+    private void found(ByteBuffer buf, int index, String location) {
+        scanned.incrementAndGet();
+        ClassInfo info;
+        try {
+            info = ClassFileReader.read(buf);
+        } catch (RuntimeException e) {
+            skipped.add(location + ", " + e.getMessage());
+            return;
+        }
+        if (info.annotated() || !info.memberClasses.isEmpty()) {
+            classes.merge(info.name, new Found(info, index), (a, b) -> a.input <= b.input ? a : b);
+        }
+    }
+
+    private static final class ZipEntry {
+        private final String name;
+        private final int method;
+        private final int compressedSize;
+        private final int size;
+        private final int offset;
+
+        private ZipEntry(String name, int method, int compressedSize, int size, int offset) {
+            this.name = name;
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+    }
+
+    private static List<ZipEntry> centralDirectory(ByteBuffer map) throws IOException {
+        var end = -1;
+        for (var pos = map.limit() - 22; pos >= Math.max(0, map.limit() - 22 - 65535); pos--) {
+            if (map.getInt(pos) == 0x06054b50) {
+                end = pos;
+                break;
+            }
+        }
+        if (end == -1)
+            throw new IOException("Not a zip file.");
+        var count = map.getShort(end + 10) & 0xffff;
+        var offset = map.getInt(end + 16);
+        if (count == 0xffff || offset == -1)
+            return null;
+
+        var entries = new ArrayList<ZipEntry>(count);
+        var pos = offset;
+        for (var i = 0; i < count; i++) {
+            if (map.getInt(pos) != 0x02014b50)
+                throw new IOException("Corrupt central directory.");
+            var nameLength = map.getShort(pos + 28) & 0xffff;
+            var nameBytes = new byte[nameLength];
+            map.duplicate().position(pos + 46).get(nameBytes);
+            var name = new String(nameBytes, StandardCharsets.UTF_8);
+            var compressedSize = map.getInt(pos + 20);
+            var size = map.getInt(pos + 24);
+            var local = map.getInt(pos + 42);
+            if (compressedSize == -1 || size == -1 || local == -1)
+                return null;
+            if (scannable(name))
+                entries.add(new ZipEntry(name, map.getShort(pos + 10) & 0xffff, compressedSize, size, local));
+            pos += 46 + nameLength + (map.getShort(pos + 30) & 0xffff) + (map.getShort(pos + 32) & 0xffff);
+        }
+        return entries;
+    }
+
+    private static ByteBuffer entry(ByteBuffer map, ZipEntry entry) {
+        var data = entry.offset + 30 + (map.getShort(entry.offset + 26) & 0xffff) + (map.getShort(entry.offset + 28) & 0xffff);
+        var compressed = map.duplicate().position(data).limit(data + entry.compressedSize).slice();
+        if (entry.method == 0)
+            return compressed.order(ByteOrder.BIG_ENDIAN);
+        if (entry.method != 8)
+            throw new IllegalArgumentException("Unsupported compression method " + entry.method + ".");
+        var inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            var bytes = new byte[entry.size];
+            var read = 0;
+            while (read < bytes.length && !inflater.finished()) {
+                var inflated = inflater.inflate(bytes, read, bytes.length - read);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    throw new IllegalArgumentException("Truncated entry " + entry.name + ".");
+                read += inflated;
+            }
+            return ByteBuffer.wrap(bytes);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt entry " + entry.name + ".", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void emit() {
+        /* In name order, so the output does not depend on the order classes were found */
+        for (var found : new TreeMap<>(classes).values()) {
+            var type = found.info;
+            if (!type.annotated())
+                continue;
+            var proxy = type.annotation(Proxy.class);
+            if (proxy != null) {
+                var interfaces = new ArrayList<String>();
+                interfaces.add(type.name);
+                interfaces.addAll(proxy.types("with"));
+                merger.proxies().add(ConfigEntries.proxy(interfaces, conditionOf(type, proxy)));
+            }
+            var serialization = type.annotation(Serialization.class);
+            if (serialization != null)
+                merger.serialization().add(ConfigEntries.named(type.name, conditionOf(type, serialization)));
+            var bundle = type.annotation(Bundle.class);
+            if (bundle != null)
+                merger.bundles().add(ConfigEntries.bundle(type.name, bundle.strings("locales"), conditionOf(type, null)));
+            var resource = type.annotation(Resource.class);
+            if (resource != null)
+                addResources(type, resource);
+            if (type.annotation(Reflectable.class) != null && kind(type))
+                addClassToReflection(type, null);
+            for (var other : repeated(type, OtherSerializable.class, OtherSerializables.class)) {
+                merger.serialization().add(ConfigEntries.named(other.type("value"), conditionOf(type, null)));
+            }
+            if ((type.access & (ClassFileReader.ACC_ENUM | ClassFileReader.ACC_ANNOTATION)) == 0) {
+                for (var other : repeated(type, OtherReflectable.class, OtherReflectables.class)) {
+                    var object = ConfigEntries.named(other.type("value"), conditionOf(type, other));
+                    ConfigEntries.addFlags(object, null, null, type.annotation(Invoke.class), other.bool("all"));
+                    merger.reflection().add(object);
+                }
+            }
+            addJni(type);
+        }
+    }
+
+    private static boolean kind(ClassInfo type) {
+        /* Classes and interfaces, but not enums, annotations or records */
+        return (type.access & (ClassFileReader.ACC_ENUM | ClassFileReader.ACC_ANNOTATION)) == 0
+                && !"java.lang.Record".equals(type.superName);
+    }
+
+    private void addResources(ClassInfo type, AnnotationInfo resource) {
+        var condition = conditionOf(type, resource);
+        var enclosing = type.outerName == null ? packageOf(type.name) : type.outerName.replace('$', '.');
+        for (var pattern : ConfigEntries.resourcePatterns(type.name, enclosing, resource.strings("value"), resource.bool("siblings")))
+            merger.includes().add(ConfigEntries.pattern(pattern, condition));
+    }
+
+    private void addClassToReflection(ClassInfo type, String enclosingCondition) {
+        var reflectable = type.annotation(Reflectable.class);
+        /* Nested classes take the condition of the enclosing class unless they have their own */
+        var condition = reflectable == null ? null : reflectable.type("condition");
+        if (condition == null)
+            condition = enclosingCondition == null ? conditionOf(type, null) : enclosingCondition;
+        var object = ConfigEntries.named(type.name, condition);
+        for (var member : type.members) {
+            if (member.annotation(Reflectable.class) != null)
+                addMember(object, member);
+        }
+        ConfigEntries.addFlags(object, type.annotation(TypeReflect.class), type.annotation(Query.class),
+                type.annotation(Invoke.class), reflectable != null && reflectable.bool("all"));
+        merger.reflection().add(object);
+
+        for (var member : type.memberClasses.entrySet()) {
+            if ((member.getValue() & (ClassFileReader.ACC_INTERFACE | ClassFileReader.ACC_ENUM
+                    | ClassFileReader.ACC_ANNOTATION | ClassFileReader.ACC_SYNTHETIC)) != 0)
+                continue;
+            var nested = classes.get(member.getKey());
+            if (nested == null)
+                /* Neither annotated nor with classes of its own */
+                merger.reflection().add(ConfigEntries.named(member.getKey(), condition));
+            else if (kind(nested.info))
+                addClassToReflection(nested.info, condition);
+        }
+    }
+
+    private void addJni(ClassInfo type) {
+        /* Only the annotated members are registered, never the whole class */
+        var jni = type.annotation(Jni.class);
+        if (jni != null)
+            merger.jni().add(ConfigEntries.named(type.name, conditionOf(type, jni)));
+        for (var member : type.members) {
+            var memberJni = member.annotation(Jni.class);
+            if (memberJni != null) {
+                var condition = memberJni.type("condition");
+                if (condition == null)
+                    condition = conditionOf(type, jni);
+                var object = ConfigEntries.named(type.name, condition);
+                addMember(object, member);
+                merger.jni().add(object);
+            }
+        }
+    }
+
+    private static void addMember(JsonObject object, MemberInfo member) {
+        if (member.field)
+            ConfigEntries.addField(object, member.name);
+        else
+            ConfigEntries.addMethod(object, member.name, member.parameterTypes());
+    }
+
+    private static List<AnnotationInfo> repeated(ClassInfo type, Class<?> annotation, Class<?> container) {
+        var annotations = new ArrayList<AnnotationInfo>();
+        var single = type.annotation(annotation);
+        if (single != null)
+            annotations.add(single);
+        var repeated = type.annotation(container);
+        if (repeated != null)
+            annotations.addAll(repeated.annotations("value"));
+        return annotations;
+    }
+
+    private String conditionOf(ClassInfo type, AnnotationInfo annotation) {
+        var condition = annotation == null ? null : annotation.type("condition");
+        if (condition == null) {
+            /* Package default, if any */
+            var pkgInfo = classes.get(packageOf(type.name) + ".package-info");
+            var pkgCondition = pkgInfo == null ? null : pkgInfo.info.annotation(Condition.class);
+            if (pkgCondition != null)
+                condition = pkgCondition.type("value");
+        }
+        return condition;
+    }
+
+    private static String packageOf(String name) {
+        var idx = name.lastIndexOf('.');
+        return idx == -1 ? "" : name.substring(0, idx);
+    }
+}
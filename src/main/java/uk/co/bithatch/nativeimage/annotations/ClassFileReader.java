@@ -0,0 +1,439 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads just enough of a class file to find the annotations of this library
+ * on the class and its members, without loading the class. Annotations of
+ * other libraries, and the code of methods, are skipped over.
+ */
+final class ClassFileReader {
+    static final String ANNOTATIONS = "uk/co/bithatch/nativeimage/annotations/";
+
+    static final int ACC_STATIC = 0x0008;
+    static final int ACC_INTERFACE = 0x0200;
+    static final int ACC_SYNTHETIC = 0x1000;
+    static final int ACC_ANNOTATION = 0x2000;
+    static final int ACC_ENUM = 0x4000;
+
+    private static final byte[] PREFIX = ("L" + ANNOTATIONS).getBytes(StandardCharsets.UTF_8);
+
+    static final class ClassInfo {
+        final String name;
+        final int access;
+        final String superName;
+        final List<AnnotationInfo> annotations;
+        final List<MemberInfo> members;
+        /* Binary names of member classes, with their access flags */
+        final Map<String, Integer> memberClasses;
+        final String outerName;
+
+        private ClassInfo(String name, int access, String superName, List<AnnotationInfo> annotations,
+                List<MemberInfo> members, Map<String, Integer> memberClasses, String outerName) {
+            this.name = name;
+            this.access = access;
+            this.superName = superName;
+            this.annotations = annotations;
+            this.members = members;
+            this.memberClasses = memberClasses;
+            this.outerName = outerName;
+        }
+
+        boolean annotated() {
+            if (!annotations.isEmpty())
+                return true;
+            for (var member : members) {
+                if (!member.annotations.isEmpty())
+                    return true;
+            }
+            return false;
+        }
+
+        AnnotationInfo annotation(Class<?> type) {
+            return AnnotationInfo.find(annotations, type);
+        }
+    }
+
+    static final class MemberInfo {
+        final String name;
+        final String descriptor;
+        final int access;
+        final boolean field;
+        final List<AnnotationInfo> annotations;
+
+        private MemberInfo(String name, String descriptor, int access, boolean field, List<AnnotationInfo> annotations) {
+            this.name = name;
+            this.descriptor = descriptor;
+            this.access = access;
+            this.field = field;
+            this.annotations = annotations;
+        }
+
+        AnnotationInfo annotation(Class<?> type) {
+            return AnnotationInfo.find(annotations, type);
+        }
+
+        /**
+         * The parameter types in the form used in configuration files, that is
+         * binary class names, primitive names and <code>[]</code> for arrays.
+         */
+        List<String> parameterTypes() {
+            var types = new ArrayList<String>();
+            var i = descriptor.indexOf('(') + 1;
+            while (descriptor.charAt(i) != ')') {
+                var end = i;
+                while (descriptor.charAt(end) == '[')
+                    end++;
+                end = descriptor.charAt(end) == 'L' ? descriptor.indexOf(';', end) + 1 : end + 1;
+                types.add(typeName(descriptor.substring(i, end)));
+                i = end;
+            }
+            return types;
+        }
+    }
+
+    static final class AnnotationInfo implements ConfigEntries.Values {
+        /* Binary name of the annotation type */
+        final String type;
+        final Map<String, Object> values;
+
+        private AnnotationInfo(String type, Map<String, Object> values) {
+            this.type = type;
+            this.values = values;
+        }
+
+        static AnnotationInfo find(List<AnnotationInfo> annotations, Class<?> type) {
+            for (var annotation : annotations) {
+                if (annotation.type.equals(type.getName()))
+                    return annotation;
+            }
+            return null;
+        }
+
+        @Override
+        public boolean bool(String name) {
+            var value = values.get(name);
+            return value instanceof Boolean && (Boolean) value;
+        }
+
+        /**
+         * A class value, or <code>null</code> if it is absent or
+         * <code>void.class</code>, as the annotations use for none.
+         */
+        String type(String name) {
+            var value = values.get(name);
+            return value instanceof ClassValue && !((ClassValue) value).name.equals("void") ? ((ClassValue) value).name : null;
+        }
+
+        List<String> types(String name) {
+            var types = new ArrayList<String>();
+            for (var value : list(name)) {
+                if (value instanceof ClassValue)
+                    types.add(((ClassValue) value).name);
+            }
+            return types;
+        }
+
+        List<String> strings(String name) {
+            var strings = new ArrayList<String>();
+            for (var value : list(name)) {
+                if (value instanceof String)
+                    strings.add((String) value);
+            }
+            return strings;
+        }
+
+        AnnotationInfo annotation(String name) {
+            var value = values.get(name);
+            return value instanceof AnnotationInfo ? (AnnotationInfo) value : null;
+        }
+
+        List<AnnotationInfo> annotations(String name) {
+            var annotations = new ArrayList<AnnotationInfo>();
+            for (var value : list(name)) {
+                if (value instanceof AnnotationInfo)
+                    annotations.add((AnnotationInfo) value);
+            }
+            return annotations;
+        }
+
+        private List<?> list(String name) {
+            var value = values.get(name);
+            if (value == null)
+                return Collections.emptyList();
+            /* A single value may be given for an array */
+            return value instanceof List ? (List<?>) value : List.of(value);
+        }
+    }
+
+    static final class ClassValue {
+        final String name;
+
+        private ClassValue(String name) {
+            this.name = name;
+        }
+    }
+
+    private final ByteBuffer buf;
+    private final int[] offsets;
+    private boolean relevant;
+
+    private ClassFileReader(ByteBuffer buf) {
+        this.buf = buf;
+        if (buf.getInt(0) != 0xCAFEBABE)
+            throw new IllegalArgumentException("Not a class file.");
+        offsets = new int[buf.getShort(8) & 0xffff];
+        var pos = 10;
+        for (var i = 1; i < offsets.length; i++) {
+            offsets[i] = pos;
+            var tag = buf.get(pos);
+            switch (tag) {
+            case 1:
+                var length = buf.getShort(pos + 1) & 0xffff;
+                if (!relevant && startsWith(pos + 3, length, PREFIX))
+                    relevant = true;
+                pos += 3 + length;
+                break;
+            case 3:
+            case 4:
+            case 9:
+            case 10:
+            case 11:
+            case 12:
+            case 17:
+            case 18:
+                pos += 5;
+                break;
+            case 5:
+            case 6:
+                /* Takes two entries */
+                pos += 9;
+                i++;
+                break;
+            case 7:
+            case 8:
+            case 16:
+            case 19:
+            case 20:
+                pos += 3;
+                break;
+            case 15:
+                pos += 4;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown constant pool tag " + tag + ".");
+            }
+        }
+        buf.position(pos);
+    }
+
+    /**
+     * Read a class. If none of the annotations of this library are referenced
+     * from its constant pool, only the class name and its member classes are
+     * read.
+     */
+    static ClassInfo read(ByteBuffer buf) {
+        return new ClassFileReader(buf.duplicate()).read();
+    }
+
+    private ClassInfo read() {
+        var access = u2();
+        var name = className(u2());
+        var superIndex = u2();
+        var superName = superIndex == 0 ? null : className(superIndex);
+        skip(2 * u2());
+
+        var members = new ArrayList<MemberInfo>();
+        for (var kind = 0; kind < 2; kind++) {
+            var count = u2();
+            for (var i = 0; i < count; i++) {
+                var memberAccess = u2();
+                var memberName = utf8(u2());
+                var descriptor = utf8(u2());
+                var annotations = attributes(null);
+                if (!annotations.isEmpty())
+                    members.add(new MemberInfo(memberName, descriptor, memberAccess, kind == 0, annotations));
+            }
+        }
+
+        var memberClasses = new LinkedHashMap<String, Integer>();
+        var outer = new String[1];
+        var annotations = attributes((inner, outerName, innerAccess) -> {
+            if (name.equals(outerName))
+                memberClasses.put(inner, innerAccess);
+            else if (name.equals(inner))
+                outer[0] = outerName;
+        });
+        return new ClassInfo(name, access, superName, annotations, members, memberClasses, outer[0]);
+    }
+
+    private interface InnerClasses {
+        void inner(String inner, String outer, int access);
+    }
+
+    private List<AnnotationInfo> attributes(InnerClasses innerClasses) {
+        var annotations = new ArrayList<AnnotationInfo>();
+        var count = u2();
+        for (var i = 0; i < count; i++) {
+            var attributeName = u2();
+            var length = buf.getInt();
+            var end = buf.position() + length;
+            if (relevant && (equals(attributeName, "RuntimeInvisibleAnnotations")
+                    || equals(attributeName, "RuntimeVisibleAnnotations"))) {
+                var annotationCount = u2();
+                for (var j = 0; j < annotationCount; j++) {
+                    var annotation = annotation();
+                    if (annotation != null)
+                        annotations.add(annotation);
+                }
+            } else if (innerClasses != null && equals(attributeName, "InnerClasses")) {
+                var classes = u2();
+                for (var j = 0; j < classes; j++) {
+                    var inner = u2();
+                    var outer = u2();
+                    u2();
+                    var innerAccess = u2();
+                    if (inner != 0 && outer != 0)
+                        innerClasses.inner(className(inner), className(outer), innerAccess);
+                }
+            }
+            buf.position(end);
+        }
+        return annotations;
+    }
+
+    private AnnotationInfo annotation() {
+        var descriptor = u2();
+        var ours = startsWith(offsets[descriptor] + 3, buf.getShort(offsets[descriptor] + 1) & 0xffff, PREFIX);
+        var values = new LinkedHashMap<String, Object>();
+        var count = u2();
+        for (var i = 0; i < count; i++) {
+            var name = u2();
+            var value = value(ours);
+            if (ours)
+                values.put(utf8(name), value);
+        }
+        return ours ? new AnnotationInfo(typeName(utf8(descriptor)), values) : null;
+    }
+
+    private Object value(boolean decode) {
+        var tag = (char) buf.get();
+        switch (tag) {
+        case 'Z':
+            var index = u2();
+            return decode ? buf.getInt(offsets[index] + 1) != 0 : null;
+        case 's':
+            index = u2();
+            return decode ? utf8(index) : null;
+        case 'c':
+            index = u2();
+            return decode ? new ClassValue(typeName(utf8(index))) : null;
+        case 'e':
+            u2();
+            index = u2();
+            return decode ? utf8(index) : null;
+        case '@':
+            var descriptor = u2();
+            var values = new LinkedHashMap<String, Object>();
+            var count = u2();
+            for (var i = 0; i < count; i++) {
+                var name = u2();
+                var value = value(decode);
+                if (decode)
+                    values.put(utf8(name), value);
+            }
+            return decode ? new AnnotationInfo(typeName(utf8(descriptor)), values) : null;
+        case '[':
+            var elements = u2();
+            var list = new ArrayList<Object>(decode ? elements : 0);
+            for (var i = 0; i < elements; i++) {
+                var value = value(decode);
+                if (decode)
+                    list.add(value);
+            }
+            return decode ? list : null;
+        default:
+            /* Other constants are not used by any of the annotations */
+            u2();
+            return null;
+        }
+    }
+
+    /**
+     * Convert a field descriptor to the name used in configuration files.
+     */
+    static String typeName(String descriptor) {
+        switch (descriptor.charAt(0)) {
+        case '[':
+            return typeName(descriptor.substring(1)) + "[]";
+        case 'L':
+            return descriptor.substring(1, descriptor.length() - 1).replace('/', '.');
+        case 'Z':
+            return "boolean";
+        case 'B':
+            return "byte";
+        case 'C':
+            return "char";
+        case 'S':
+            return "short";
+        case 'I':
+            return "int";
+        case 'J':
+            return "long";
+        case 'F':
+            return "float";
+        case 'D':
+            return "double";
+        default:
+            return "void";
+        }
+    }
+
+    private String className(int index) {
+        return utf8(buf.getShort(offsets[index] + 1) & 0xffff).replace('/', '.');
+    }
+
+    private boolean equals(int index, String ascii) {
+        var pos = offsets[index];
+        var length = buf.getShort(pos + 1) & 0xffff;
+        if (length != ascii.length())
+            return false;
+        for (var i = 0; i < length; i++) {
+            if (buf.get(pos + 3 + i) != ascii.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean startsWith(int pos, int length, byte[] prefix) {
+        if (length < prefix.length)
+            return false;
+        for (var i = 0; i < prefix.length; i++) {
+            if (buf.get(pos + i) != prefix[i])
+                return false;
+        }
+        return true;
+    }
+
+    private String utf8(int index) {
+        /* Modified UTF-8, which differs from UTF-8 only in ways that do not matter for names */
+        var pos = offsets[index];
+        var bytes = new byte[buf.getShort(pos + 1) & 0xffff];
+        buf.duplicate().position(pos + 3).get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int u2() {
+        return buf.getShort() & 0xffff;
+    }
+
+    private void skip(int bytes) {
+        buf.position(buf.position() + bytes);
+    }
+}
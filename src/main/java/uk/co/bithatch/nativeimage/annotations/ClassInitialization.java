@@ -0,0 +1,65 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.processing.Messager;
+import javax.tools.Diagnostic.Kind;
+
+final class ClassInitialization {
+
+    private final Messager messager;
+
+    ClassInitialization(Messager messager) {
+        this.messager = messager;
+    }
+
+    /**
+     * Build the <code>--initialize-at-*</code> arguments. Names are packages or
+     * binary class names. A package covers its sub-packages too, as it does for
+     * native-image, so anything already covered by a package with the same
+     * policy is dropped. Types are never collapsed into their package, as that
+     * would also cover types that are not annotated, in the package or any of
+     * its sub-packages.
+     */
+    List<String> args(Set<String> buildTime, Set<String> runTime) {
+        var build = new TreeSet<>(buildTime);
+        var run = new TreeSet<>(runTime);
+        for (var name : buildTime) {
+            if (run.contains(name)) {
+                messager.printMessage(Kind.WARNING, "[native-image-annotations] " + name
+                        + " is marked to be initialized at both build time and run time, it will be initialized at run time.");
+                build.remove(name);
+            }
+        }
+
+        var args = new ArrayList<String>();
+        var buildNames = reduce(build);
+        if (!buildNames.isEmpty())
+            args.add("--initialize-at-build-time=" + String.join(",", buildNames));
+        var runNames = reduce(run);
+        if (!runNames.isEmpty())
+            args.add("--initialize-at-run-time=" + String.join(",", runNames));
+        return args;
+    }
+
+    private static Set<String> reduce(Set<String> names) {
+        /* Drop anything already covered by a package */
+        var reduced = new TreeSet<String>();
+        for (var name : names) {
+            if (!covered(name, names))
+                reduced.add(name);
+        }
+        return reduced;
+    }
+
+    private static boolean covered(String name, Set<String> names) {
+        for (var i = name.lastIndexOf('.'); i != -1; i = name.lastIndexOf('.', i - 1)) {
+            if (names.contains(name.substring(0, i)))
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,380 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Compares configuration with a baseline, such as one committed with the last
+ * release, to find what has been added. Both sides are indexed by class,
+ * interface set or pattern, so the comparison is linear in the number of
+ * entries. Added patterns are only tried against the baseline patterns that
+ * start with their literal prefix, found in a sorted index.
+ */
+public final class ConfigDiff {
+
+    enum Metric {
+        CLASSES("classes"), FLAGS("flags"), MEMBERS("members"), PROXIES("proxies"), SERIALIZATION("serialization"),
+        RESOURCES("resources"), WIDENED("widened");
+
+        private final String key;
+
+        Metric(String key) {
+            this.key = key;
+        }
+
+        String key() {
+            return key;
+        }
+
+        static Metric of(String key) {
+            for (var metric : values()) {
+                if (metric.key.equals(key))
+                    return metric;
+            }
+            throw new IllegalArgumentException("Unknown metric " + key + ".");
+        }
+    }
+
+    private final Map<Metric, Integer> growth = new EnumMap<>(Metric.class);
+    private final JsonObject diff = new JsonObject();
+
+    private ConfigDiff() {
+        for (var metric : Metric.values()) {
+            growth.put(metric, 0);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path output = null;
+        Map<Metric, Integer> max = null;
+        var inputs = new ArrayList<Path>();
+        for (var i = 0; i < args.length; i++) {
+            if ((args[i].equals("-o") || args[i].equals("--output")) && i + 1 < args.length)
+                output = Paths.get(args[++i]);
+            else if (args[i].equals("--max") && i + 1 < args.length) {
+                try {
+                    max = limits(args[++i]);
+                } catch (IllegalArgumentException iae) {
+                    System.err.println(iae.getMessage());
+                    System.exit(1);
+                    return;
+                }
+            }
+            else if (args[i].startsWith("-")) {
+                inputs.clear();
+                break;
+            } else
+                inputs.add(Paths.get(args[i]));
+        }
+        if (inputs.size() != 2) {
+            System.err.println("Usage: " + ConfigDiff.class.getName()
+                    + " [-o <file>] [--max <metric>=<count>,...] <baseline> <current>");
+            System.exit(1);
+            return;
+        }
+
+        var baseline = new ConfigMerger();
+        baseline.read(inputs.get(0));
+        var current = new ConfigMerger();
+        current.read(inputs.get(1));
+        var diff = compare(baseline, current);
+        if (output == null) {
+            var w = new JsonWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            w.setIndent("  ");
+            diff.write(w);
+            w.flush();
+            System.out.println();
+        } else {
+            try (var out = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+                var w = new JsonWriter(out);
+                w.setIndent("  ");
+                diff.write(w);
+                w.flush();
+            }
+        }
+        System.err.println(diff.summary());
+        if (max != null) {
+            var exceeded = diff.exceeded(max);
+            if (!exceeded.isEmpty()) {
+                System.err.println("Growth exceeds the limits, " + String.join(", ", exceeded) + ".");
+                System.exit(2);
+            }
+        }
+    }
+
+    /**
+     * Parse limits such as <code>classes=10,flags=0</code>.
+     */
+    static Map<Metric, Integer> limits(String value) {
+        var limits = new EnumMap<Metric, Integer>(Metric.class);
+        for (var limit : value.split(",")) {
+            if (limit.isBlank())
+                continue;
+            var idx = limit.indexOf('=');
+            if (idx == -1)
+                throw new IllegalArgumentException("Expected <metric>=<count> rather than " + limit + ".");
+            try {
+                limits.put(Metric.of(limit.substring(0, idx).trim()), Integer.parseInt(limit.substring(idx + 1).trim()));
+            } catch (NumberFormatException nfe) {
+                throw new IllegalArgumentException("Expected a count in " + limit + ".", nfe);
+            }
+        }
+        return limits;
+    }
+
+    static ConfigDiff compare(ConfigMerger baseline, ConfigMerger current) {
+        var diff = new ConfigDiff();
+        diff.diff.add("reflection", diff.compare(baseline.reflection(), current.reflection(), true));
+        diff.diff.add("jni", diff.compare(baseline.jni(), current.jni(), false));
+        diff.diff.add("proxies", diff.compare(baseline.proxies(), current.proxies(), Metric.PROXIES));
+        diff.diff.add("serialization", diff.compare(baseline.serialization(), current.serialization(), Metric.SERIALIZATION));
+        var resources = diff.compare(baseline.includes(), current.includes(), Metric.RESOURCES);
+        resources.add("widened", diff.widened(baseline.includes(), resources.getAsJsonArray("added")));
+        diff.diff.add("resources", resources);
+        diff.diff.add("bundles", diff.compare(baseline.bundles(), current.bundles(), Metric.RESOURCES));
+        var growth = new JsonObject();
+        for (var metric : diff.growth.entrySet()) {
+            growth.addProperty(metric.getKey().key(), metric.getValue());
+        }
+        diff.diff.add("growth", growth);
+        return diff;
+    }
+
+    List<String> exceeded(Map<Metric, Integer> limits) {
+        var exceeded = new ArrayList<String>();
+        for (var limit : limits.entrySet()) {
+            var value = growth.get(limit.getKey());
+            if (value > limit.getValue())
+                exceeded.add(value + " " + limit.getKey().key() + " where at most " + limit.getValue() + " are allowed");
+        }
+        return exceeded;
+    }
+
+    String summary() {
+        var parts = new ArrayList<String>();
+        for (var metric : growth.entrySet()) {
+            parts.add(metric.getValue() + " " + metric.getKey().key());
+        }
+        return "Added " + String.join(", ", parts) + ".";
+    }
+
+    void write(JsonWriter writer) throws IOException {
+        new Gson().toJson(diff, writer);
+    }
+
+    private JsonObject compare(ReflectionIndex baseline, ReflectionIndex current, boolean count) {
+        var before = new HashMap<String, JsonObject>();
+        for (var entry : baseline.entries()) {
+            before.put(ReflectionIndex.key(entry), entry);
+        }
+        var added = new JsonArray();
+        var changed = new JsonArray();
+        var seen = new TreeSet<String>();
+        for (var entry : current.entries()) {
+            var key = ReflectionIndex.key(entry);
+            seen.add(key);
+            var was = before.get(key);
+            if (was == null) {
+                added.add(key);
+                if (count)
+                    add(Metric.CLASSES, 1);
+                continue;
+            }
+
+            /* Flags newly set, and members newly listed */
+            var flags = new JsonArray();
+            for (var property : entry.entrySet()) {
+                var value = property.getValue();
+                if (value.isJsonPrimitive() && value.getAsJsonPrimitive().isBoolean() && value.getAsBoolean()) {
+                    var old = was.get(property.getKey());
+                    if (old == null || !old.getAsBoolean())
+                        flags.add(property.getKey());
+                }
+            }
+            var methods = addedMembers(was.getAsJsonArray("methods"), entry.getAsJsonArray("methods"));
+            var fields = addedMembers(was.getAsJsonArray("fields"), entry.getAsJsonArray("fields"));
+            if (flags.size() + methods.size() + fields.size() > 0) {
+                var change = new JsonObject();
+                change.addProperty("name", key);
+                if (flags.size() > 0)
+                    change.add("flags", flags);
+                if (methods.size() > 0)
+                    change.add("methods", methods);
+                if (fields.size() > 0)
+                    change.add("fields", fields);
+                changed.add(change);
+                if (count) {
+                    add(Metric.FLAGS, flags.size());
+                    add(Metric.MEMBERS, methods.size() + fields.size());
+                }
+            }
+        }
+        var removed = new JsonArray();
+        for (var key : new TreeSet<>(before.keySet())) {
+            if (!seen.contains(key))
+                removed.add(key);
+        }
+        var result = new JsonObject();
+        result.add("added", added);
+        result.add("removed", removed);
+        result.add("changed", changed);
+        return result;
+    }
+
+    private static JsonArray addedMembers(JsonArray before, JsonArray after) {
+        var added = new JsonArray();
+        if (after == null)
+            return added;
+        var existing = new HashSet<JsonElement>();
+        if (before != null) {
+            for (var member : before) {
+                existing.add(memberKey(member));
+            }
+        }
+        for (var member : after) {
+            if (!existing.contains(memberKey(member)))
+                added.add(member);
+        }
+        return added;
+    }
+
+    private static JsonElement memberKey(JsonElement member) {
+        /* Only the name and parameters identify a member */
+        var key = new JsonObject();
+        key.add("name", member.getAsJsonObject().get("name"));
+        var parameterTypes = member.getAsJsonObject().get("parameterTypes");
+        key.add("parameterTypes", parameterTypes == null ? new JsonArray() : parameterTypes);
+        return key;
+    }
+
+    private JsonObject compare(Set<JsonElement> baseline, Set<JsonElement> current, Metric metric) {
+        var added = new JsonArray();
+        for (var entry : current) {
+            if (!baseline.contains(entry))
+                added.add(entry);
+        }
+        var removed = new JsonArray();
+        for (var entry : baseline) {
+            if (!current.contains(entry))
+                removed.add(entry);
+        }
+        add(metric, added.size());
+        var result = new JsonObject();
+        result.add("added", added);
+        result.add("removed", removed);
+        return result;
+    }
+
+    private JsonArray widened(Set<JsonElement> baseline, JsonArray added) {
+        /*
+         * An added pattern that matches what a baseline pattern names has been
+         * widened to cover it (and probably more). Exact patterns are compared
+         * by their text, anything else by the pattern itself.
+         */
+        var literals = new TreeMap<String, List<JsonElement>>();
+        for (var old : baseline) {
+            var oldPattern = old.getAsJsonObject().get("pattern");
+            if (oldPattern != null)
+                literals.computeIfAbsent(literal(oldPattern.getAsString()), k -> new ArrayList<>()).add(oldPattern);
+        }
+        var widened = new JsonArray();
+        for (var entry : added) {
+            var pattern = entry.getAsJsonObject().get("pattern");
+            if (pattern == null)
+                continue;
+            Pattern regex;
+            try {
+                regex = Pattern.compile(pattern.getAsString());
+            } catch (PatternSyntaxException pse) {
+                continue;
+            }
+            var prefix = prefix(pattern.getAsString());
+            var covers = new JsonArray();
+            for (var literal : literals.tailMap(prefix).entrySet()) {
+                if (!literal.getKey().startsWith(prefix))
+                    break;
+                if (regex.matcher(literal.getKey()).matches()) {
+                    for (var oldPattern : literal.getValue()) {
+                        if (!oldPattern.equals(pattern))
+                            covers.add(oldPattern);
+                    }
+                }
+            }
+            if (covers.size() > 0) {
+                var widening = new JsonObject();
+                widening.add("pattern", pattern);
+                widening.add("covers", covers);
+                widened.add(widening);
+            }
+        }
+        add(Metric.WIDENED, widened.size());
+        return widened;
+    }
+
+    private static String literal(String pattern) {
+        if (pattern.startsWith("\\Q") && pattern.endsWith("\\E") && pattern.indexOf("\\E") == pattern.length() - 2)
+            return pattern.substring(2, pattern.length() - 2);
+        return pattern;
+    }
+
+    /**
+     * The text that anything a pattern matches must start with, which is empty
+     * when that cannot easily be told.
+     */
+    static String prefix(String pattern) {
+        if (pattern.indexOf('|') != -1)
+            return "";
+        var prefix = new StringBuilder();
+        for (var i = 0; i < pattern.length(); i++) {
+            var c = pattern.charAt(i);
+            if (c == '\\' && i + 1 < pattern.length()) {
+                var next = pattern.charAt(++i);
+                if (next == 'Q') {
+                    var end = pattern.indexOf("\\E", i + 1);
+                    if (end == -1)
+                        return prefix.append(pattern, i + 1, pattern.length()).toString();
+                    prefix.append(pattern, i + 1, end);
+                    i = end + 1;
+                } else if (Character.isLetterOrDigit(next))
+                    /* A character class, boundary or back reference */
+                    break;
+                else
+                    prefix.append(next);
+            } else if (".[](){}+*?^$".indexOf(c) != -1)
+                break;
+            else
+                prefix.append(c);
+            /* A quantifier that allows none makes the last character optional */
+            if (i + 1 < pattern.length() && "?*{".indexOf(pattern.charAt(i + 1)) != -1) {
+                prefix.setLength(Math.max(0, prefix.length() - 1));
+                break;
+            }
+        }
+        return prefix.toString();
+    }
+
+    private void add(Metric metric, int count) {
+        growth.merge(metric, count, Integer::sum);
+    }
+}
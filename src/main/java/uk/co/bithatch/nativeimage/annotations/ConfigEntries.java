@@ -0,0 +1,153 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * How the annotations of this library become configuration entries. Shared by
+ * the processor, which reads the annotations from the compiler's elements, and
+ * {@link BytecodeScanner}, which reads them from class files, so that both
+ * always write the same configuration.
+ */
+final class ConfigEntries {
+
+    /**
+     * The values of an annotation, however they were read.
+     */
+    interface Values {
+        boolean bool(String name);
+    }
+
+    private ConfigEntries() {
+    }
+
+    /**
+     * The values of an annotation the compiler has made an instance of, or
+     * <code>null</code> if there is none.
+     */
+    static Values values(Annotation annotation) {
+        if (annotation == null)
+            return null;
+        return name -> {
+            try {
+                return (Boolean) annotation.annotationType().getMethod(name).invoke(annotation);
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException("No boolean " + name + " in " + annotation.annotationType().getName() + ".", e);
+            }
+        };
+    }
+
+    static JsonObject named(String name, String condition) {
+        var object = new JsonObject();
+        object.addProperty("name", name);
+        NativeImageProcessor.addCondition(object, condition);
+        return object;
+    }
+
+    static JsonObject pattern(String pattern, String condition) {
+        var object = new JsonObject();
+        NativeImageProcessor.addCondition(object, condition);
+        object.addProperty("pattern", pattern);
+        return object;
+    }
+
+    static JsonObject proxy(List<String> interfaces, String condition) {
+        var object = new JsonObject();
+        NativeImageProcessor.addCondition(object, condition);
+        var array = new JsonArray();
+        interfaces.forEach(array::add);
+        object.add("interfaces", array);
+        return object;
+    }
+
+    static JsonObject bundle(String name, List<String> locales, String condition) {
+        var object = named(name, condition);
+        if (!locales.isEmpty()) {
+            var array = new JsonArray();
+            locales.forEach(array::add);
+            object.add("locales", array);
+        }
+        return object;
+    }
+
+    static void addMethod(JsonObject object, String name, List<String> parameterTypes) {
+        var method = new JsonObject();
+        method.addProperty("name", name);
+        if (!parameterTypes.isEmpty()) {
+            var types = new JsonArray();
+            parameterTypes.forEach(types::add);
+            method.add("parameterTypes", types);
+        }
+        array(object, "methods").add(method);
+    }
+
+    static void addField(JsonObject object, String name) {
+        var field = new JsonObject();
+        field.addProperty("name", name);
+        array(object, "fields").add(field);
+    }
+
+    /**
+     * The patterns for a {@link Resource} on a type, given its binary name and
+     * the name of the package or class enclosing it.
+     */
+    static List<String> resourcePatterns(String type, String enclosing, List<String> values, boolean siblings) {
+        var path = type.replace('.', '/');
+        var patterns = new ArrayList<String>();
+        if (siblings)
+            patterns.add(enclosing.replace('.', '/') + "/.*");
+        if (values.isEmpty()) {
+            if (!siblings)
+                patterns.add(path + ".*\\..*");
+        } else {
+            for (var pattern : values) {
+                /* Relative to the type, and taken literally */
+                if (pattern.startsWith("./"))
+                    patterns.add("\\Q" + path + "/" + pattern.substring(2) + "\\E");
+                else
+                    patterns.add(pattern);
+            }
+        }
+        return patterns;
+    }
+
+    /**
+     * Add the flags for what of a type may be queried and invoked. Any of the
+     * annotations may be <code>null</code>.
+     */
+    static void addFlags(JsonObject object, Values typeReflect, Values query, Values invoke, boolean reflectAll) {
+        var constructors = typeReflect != null && typeReflect.bool("constructors");
+        var methods = typeReflect != null && typeReflect.bool("methods");
+        var fields = typeReflect != null && typeReflect.bool("fields");
+        var classes = typeReflect != null && typeReflect.bool("classes");
+        var queryAll = query != null && query.bool("all");
+        var invokeAll = invoke != null && invoke.bool("all");
+        flag(object, "queryAllPublicConstructors", reflectAll || constructors || queryAll || query != null && query.bool("publicConstructors"));
+        flag(object, "queryAllDeclaredConstructors", reflectAll || constructors || queryAll || query != null && query.bool("declaredConstructors"));
+        flag(object, "queryAllPublicMethods", reflectAll || methods || queryAll || query != null && query.bool("publicMethods"));
+        flag(object, "queryAllDeclaredMethods", reflectAll || methods || queryAll || query != null && query.bool("declaredMethods"));
+        flag(object, "allPublicConstructors", reflectAll || constructors || invokeAll || invoke != null && invoke.bool("publicConstructors"));
+        flag(object, "allDeclaredConstructors", reflectAll || constructors || invokeAll || invoke != null && invoke.bool("declaredConstructors"));
+        flag(object, "allPublicMethods", reflectAll || methods || invokeAll || invoke != null && invoke.bool("publicMethods"));
+        flag(object, "allDeclaredMethods", reflectAll || methods || invokeAll || invoke != null && invoke.bool("declaredMethods"));
+        flag(object, "allPublicFields", reflectAll || fields || invokeAll || invoke != null && invoke.bool("publicFields"));
+        flag(object, "allDeclaredFields", reflectAll || fields || invokeAll || invoke != null && invoke.bool("declaredFields"));
+        flag(object, "allPublicClasses", reflectAll || classes || invokeAll || invoke != null && invoke.bool("publicClasses"));
+        flag(object, "allDeclaredClasses", reflectAll || classes || invokeAll || invoke != null && invoke.bool("declaredClasses"));
+    }
+
+    private static void flag(JsonObject object, String name, boolean value) {
+        if (value)
+            object.addProperty(name, true);
+    }
+
+    private static JsonArray array(JsonObject object, String name) {
+        if (!object.has(name))
+            object.add(name, new JsonArray());
+        return object.getAsJsonArray(name);
+    }
+}
@@ -0,0 +1,340 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.ZipFile;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * Merges native image configuration from any number of directories, jars or
+ * files, such as the output of this processor, of the tracing agent, and the
+ * configuration shipped in dependencies, into a single set of files.
+ * <p>
+ * Files are read one entry at a time, and only distinct entries are kept, so
+ * memory use follows the number of distinct classes, interface sets and
+ * patterns rather than the size of the input.
+ */
+public final class ConfigMerger {
+    static final String REFLECT = "reflect-config.json";
+    static final String JNI = "jni-config.json";
+    static final String PROXY = "proxy-config.json";
+    static final String SERIALIZATION = "serialization-config.json";
+    static final String RESOURCE = "resource-config.json";
+
+    interface Sink {
+        void write(String fileName, int entries, NativeImageProcessor.JsonEmitter emitter) throws IOException;
+    }
+
+    private final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+    private final ReflectionIndex reflection = new ReflectionIndex();
+    private final ReflectionIndex jni = new ReflectionIndex();
+    private final Set<JsonElement> proxies = sortedSet();
+    private final Set<JsonElement> serialization = sortedSet();
+    private final Set<JsonElement> lambdaCapturingTypes = sortedSet();
+    private final Set<JsonElement> serializationProxies = sortedSet();
+    private final Set<JsonElement> includes = sortedSet();
+    private final Set<JsonElement> excludes = sortedSet();
+    private final Set<JsonElement> bundles = sortedSet();
+    private int files;
+
+    public ConfigMerger() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path output = null;
+        var compact = false;
+        var inputs = new ArrayList<Path>();
+        for (var i = 0; i < args.length; i++) {
+            if ((args[i].equals("-o") || args[i].equals("--output")) && i + 1 < args.length)
+                output = Paths.get(args[++i]);
+            else if (args[i].equals("--compact"))
+                compact = true;
+            else if (args[i].startsWith("-")) {
+                output = null;
+                break;
+            } else
+                inputs.add(Paths.get(args[i]));
+        }
+        if (output == null || inputs.isEmpty()) {
+            System.err.println("Usage: " + ConfigMerger.class.getName() + " -o <directory> [--compact] <directory|jar|file>...");
+            System.exit(1);
+            return;
+        }
+
+        var merger = new ConfigMerger();
+        for (var input : inputs) {
+            merger.read(input);
+        }
+        var written = merger.write(output, compact);
+        System.out.println("Merged " + merger.files + " files into " + written.size() + " in " + output + ".");
+    }
+
+    ReflectionIndex reflection() {
+        return reflection;
+    }
+
+    ReflectionIndex jni() {
+        return jni;
+    }
+
+    Set<JsonElement> proxies() {
+        return proxies;
+    }
+
+    Set<JsonElement> serialization() {
+        return serialization;
+    }
+
+    Set<JsonElement> includes() {
+        return includes;
+    }
+
+    Set<JsonElement> bundles() {
+        return bundles;
+    }
+
+    /**
+     * Read all of the configuration files in a directory (at any depth), in the
+     * <code>META-INF/native-image</code> of a jar, or a single file.
+     */
+    public void read(Path input) throws IOException {
+        if (Files.isDirectory(input)) {
+            try (var walk = Files.walk(input)) {
+                for (var file : (Iterable<Path>) walk.filter(Files::isRegularFile)::iterator) {
+                    if (known(file.getFileName().toString())) {
+                        try (var r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                            read(file.getFileName().toString(), r);
+                        }
+                    }
+                }
+            }
+        } else if (input.getFileName().toString().endsWith(".jar") || input.getFileName().toString().endsWith(".zip")) {
+            try (var zip = new ZipFile(input.toFile())) {
+                for (var entries = zip.entries(); entries.hasMoreElements();) {
+                    var entry = entries.nextElement();
+                    var name = entry.getName();
+                    var fileName = name.substring(name.lastIndexOf('/') + 1);
+                    if (name.startsWith("META-INF/native-image/") && known(fileName)) {
+                        try (var r = new InputStreamReader(zip.getInputStream(entry), StandardCharsets.UTF_8)) {
+                            read(fileName, r);
+                        }
+                    }
+                }
+            }
+        } else if (known(input.getFileName().toString())) {
+            try (var r = Files.newBufferedReader(input, StandardCharsets.UTF_8)) {
+                read(input.getFileName().toString(), r);
+            }
+        } else {
+            throw new IOException("Not a directory, jar or known configuration file, " + input + ".");
+        }
+    }
+
+    static boolean known(String fileName) {
+        return fileName.equals(REFLECT) || fileName.equals(JNI) || fileName.equals(PROXY)
+                || fileName.equals(SERIALIZATION) || fileName.equals(RESOURCE);
+    }
+
+    void read(String fileName, Reader in) throws IOException {
+        files++;
+        var r = new JsonReader(in);
+        r.setLenient(true);
+        switch (fileName) {
+        case REFLECT:
+            readArray(r, e -> reflection.add(reflectionEntry(e)));
+            break;
+        case JNI:
+            readArray(r, e -> jni.add(reflectionEntry(e)));
+            break;
+        case PROXY:
+            /* Older files list each proxy as a plain array of interfaces */
+            readArray(r, e -> {
+                if (e.isJsonArray()) {
+                    var object = new JsonObject();
+                    object.add("interfaces", e);
+                    proxies.add(object);
+                } else {
+                    proxies.add(e);
+                }
+            });
+            break;
+        case SERIALIZATION:
+            if (r.peek() == JsonToken.BEGIN_ARRAY) {
+                readArray(r, serialization::add);
+            } else {
+                r.beginObject();
+                while (r.hasNext()) {
+                    var name = r.nextName();
+                    if (name.equals("types"))
+                        readArray(r, serialization::add);
+                    else if (name.equals("lambdaCapturingTypes"))
+                        readArray(r, lambdaCapturingTypes::add);
+                    else if (name.equals("proxies"))
+                        readArray(r, serializationProxies::add);
+                    else
+                        r.skipValue();
+                }
+                r.endObject();
+            }
+            break;
+        case RESOURCE:
+            r.beginObject();
+            while (r.hasNext()) {
+                var name = r.nextName();
+                if (name.equals("resources")) {
+                    if (r.peek() == JsonToken.BEGIN_ARRAY) {
+                        readArray(r, includes::add);
+                    } else {
+                        r.beginObject();
+                        while (r.hasNext()) {
+                            var section = r.nextName();
+                            if (section.equals("includes"))
+                                readArray(r, includes::add);
+                            else if (section.equals("excludes"))
+                                readArray(r, excludes::add);
+                            else
+                                r.skipValue();
+                        }
+                        r.endObject();
+                    }
+                } else if (name.equals("bundles")) {
+                    readArray(r, bundles::add);
+                } else {
+                    r.skipValue();
+                }
+            }
+            r.endObject();
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown configuration file " + fileName + ".");
+        }
+    }
+
+    private static JsonObject reflectionEntry(JsonElement element) {
+        var object = element.getAsJsonObject();
+        if (!object.has("name") && object.has("type") && object.get("type").isJsonPrimitive()) {
+            var renamed = new JsonObject();
+            renamed.add("name", object.get("type"));
+            for (var property : object.entrySet()) {
+                if (!property.getKey().equals("type"))
+                    renamed.add(property.getKey(), property.getValue());
+            }
+            return renamed;
+        }
+        return object;
+    }
+
+    private interface EntryHandler {
+        void entry(JsonElement element);
+    }
+
+    private static void readArray(JsonReader r, EntryHandler handler) throws IOException {
+        r.beginArray();
+        while (r.hasNext()) {
+            handler.entry(JsonParser.parseReader(r));
+        }
+        r.endArray();
+    }
+
+    /**
+     * Write each file that has any entries, returning the names of those written.
+     */
+    List<String> write(Sink sink) throws IOException {
+        var written = new ArrayList<String>();
+        if (reflection.size() > 0) {
+            sink.write(REFLECT, reflection.size(), w -> writeArray(w, reflection.entries()));
+            written.add(REFLECT);
+        }
+        if (jni.size() > 0) {
+            sink.write(JNI, jni.size(), w -> writeArray(w, jni.entries()));
+            written.add(JNI);
+        }
+        if (!proxies.isEmpty()) {
+            sink.write(PROXY, proxies.size(), w -> writeArray(w, proxies));
+            written.add(PROXY);
+        }
+        if (!serialization.isEmpty() || !lambdaCapturingTypes.isEmpty() || !serializationProxies.isEmpty()) {
+            sink.write(SERIALIZATION, serialization.size() + lambdaCapturingTypes.size() + serializationProxies.size(), w -> {
+                if (lambdaCapturingTypes.isEmpty() && serializationProxies.isEmpty()) {
+                    writeArray(w, serialization);
+                } else {
+                    w.beginObject();
+                    w.name("types");
+                    writeArray(w, serialization);
+                    w.name("lambdaCapturingTypes");
+                    writeArray(w, lambdaCapturingTypes);
+                    w.name("proxies");
+                    writeArray(w, serializationProxies);
+                    w.endObject();
+                }
+            });
+            written.add(SERIALIZATION);
+        }
+        sink.write(RESOURCE, includes.size() + excludes.size() + bundles.size(), w -> {
+            w.beginObject();
+            w.name("resources");
+            w.beginObject();
+            w.name("includes");
+            writeArray(w, includes);
+            if (!excludes.isEmpty()) {
+                w.name("excludes");
+                writeArray(w, excludes);
+            }
+            w.endObject();
+            w.name("bundles");
+            writeArray(w, bundles);
+            w.endObject();
+        });
+        written.add(RESOURCE);
+        return written;
+    }
+
+    /**
+     * Write each file that has any entries to a directory, returning the names
+     * of those written.
+     */
+    List<String> write(Path directory, boolean compact) throws IOException {
+        Files.createDirectories(directory);
+        return write((fileName, entries, emitter) -> {
+            try (var out = Files.newBufferedWriter(directory.resolve(fileName), StandardCharsets.UTF_8)) {
+                var w = new JsonWriter(out);
+                if (!compact)
+                    w.setIndent("  ");
+                emitter.emit(w);
+                w.flush();
+                out.newLine();
+            }
+        });
+    }
+
+    private static Set<JsonElement> sortedSet() {
+        /* Sorted, as the processor's own output is, so the output does not depend on the order of the inputs */
+        return new TreeSet<>(Comparator.comparing(JsonElement::toString));
+    }
+
+    private void writeArray(JsonWriter writer, Iterable<? extends JsonElement> entries) throws IOException {
+        writer.beginArray();
+        for (var entry : entries) {
+            gson.toJson(entry, writer);
+        }
+        writer.endArray();
+    }
+}
@@ -0,0 +1,23 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@Target({ ElementType.METHOD, ElementType.FIELD })
+@Retention(RetentionPolicy.CLASS)
+public @interface Downcall {
+
+	String returnType() default "";
+
+	String[] parameterTypes() default {};
+
+	int firstVariadicArg() default -1;
+
+	boolean captureCallState() default false;
+
+	boolean critical() default false;
+
+	boolean allowHeapAccess() default false;
+}
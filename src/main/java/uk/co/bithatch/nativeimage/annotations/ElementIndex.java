@@ -0,0 +1,171 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+
+/**
+ * The elements of a round by the annotations of this library they carry, found
+ * in a single pass over the root elements rather than a scan for each
+ * annotation. A type may also be registered by any of {@link Reflectable},
+ * {@link TypeReflect}, {@link Invoke}, {@link Query} or {@link Serialization}
+ * on its package or, when enabled, on a stereotype, an annotation of its own. Whether an annotation type is a stereotype, and whether a package
+ * registers its types, is only worked out once. When a package is compiled, all
+ * of its types are indexed, as its registration applies to those compiled
+ * before too.
+ */
+final class ElementIndex {
+    private static final String PACKAGE = Reflectable.class.getPackageName() + ".";
+    private static final List<Class<? extends Annotation>> REGISTERING = List.of(Reflectable.class, TypeReflect.class,
+            Invoke.class, Query.class, Serialization.class);
+
+    private final Elements elements;
+    private final boolean withStereotypes;
+    private final Map<String, Boolean> stereotypes = new HashMap<>();
+    private final Map<String, Boolean> packages = new HashMap<>();
+    private final Map<String, Set<Element>> annotated = new HashMap<>();
+    /* The stereotypes and then the package each registered type takes its annotations from */
+    private final Map<TypeElement, List<Element>> sources = new LinkedHashMap<>();
+
+    ElementIndex(Elements elements, boolean withStereotypes) {
+        this.elements = elements;
+        this.withStereotypes = withStereotypes;
+    }
+
+    void index(RoundEnvironment roundEnvironment) {
+        annotated.clear();
+        sources.clear();
+        var roots = roundEnvironment.getRootElements();
+        for (var element : roots) {
+            visit(element);
+            if (element instanceof PackageElement) {
+                /* Whatever it registers has changed for the types not compiled now too */
+                for (var type : ElementFilter.typesIn(element.getEnclosedElements())) {
+                    if (!roots.contains(type))
+                        visit(type);
+                }
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return annotated.isEmpty() && sources.isEmpty();
+    }
+
+    /**
+     * The elements directly annotated with one of the annotations of this
+     * library, in the order they were found.
+     */
+    Set<Element> annotatedWith(Class<? extends Annotation> type) {
+        return annotated.getOrDefault(type.getName(), Collections.emptySet());
+    }
+
+    /**
+     * The types to add reflection entries for, those annotated with
+     * {@link Reflectable} and those registered by a stereotype or package.
+     */
+    Set<Element> reflectable() {
+        var reflectable = new LinkedHashSet<>(annotatedWith(Reflectable.class));
+        for (var source : sources.entrySet()) {
+            if (provides(source.getValue(), Reflectable.class) || provides(source.getValue(), TypeReflect.class)
+                    || provides(source.getValue(), Invoke.class) || provides(source.getValue(), Query.class))
+                reflectable.add(source.getKey());
+        }
+        return reflectable;
+    }
+
+    /**
+     * The types to add serialization entries for, those annotated with
+     * {@link Serialization} and those registered by a stereotype or package.
+     */
+    Set<Element> serializable() {
+        var serializable = new LinkedHashSet<Element>();
+        for (var element : annotatedWith(Serialization.class)) {
+            if (element instanceof TypeElement && element.getKind() != ElementKind.ANNOTATION_TYPE)
+                serializable.add(element);
+        }
+        for (var source : sources.entrySet()) {
+            if (source.getKey().getKind().isClass() && provides(source.getValue(), Serialization.class))
+                serializable.add(source.getKey());
+        }
+        return serializable;
+    }
+
+    /**
+     * An annotation of an element, either its own or, for a type, that of its
+     * first stereotype or its package that has one.
+     */
+    <A extends Annotation> A annotation(Element element, Class<A> type) {
+        var annotation = element.getAnnotation(type);
+        if (annotation == null) {
+            var from = sources.get(element);
+            if (from != null) {
+                for (var source : from) {
+                    annotation = source.getAnnotation(type);
+                    if (annotation != null)
+                        break;
+                }
+            }
+        }
+        return annotation;
+    }
+
+    private void visit(Element element) {
+        var isType = element instanceof TypeElement && element.getKind() != ElementKind.ANNOTATION_TYPE;
+        List<Element> from = null;
+        for (var mirror : element.getAnnotationMirrors()) {
+            var annotationType = (TypeElement) mirror.getAnnotationType().asElement();
+            var name = annotationType.getQualifiedName().toString();
+            if (name.startsWith(PACKAGE) && name.indexOf('.', PACKAGE.length()) == -1) {
+                annotated.computeIfAbsent(name, k -> new LinkedHashSet<>()).add(element);
+            } else if (withStereotypes && isType && stereotypes.computeIfAbsent(name, k -> registers(annotationType))) {
+                from = from == null ? new ArrayList<>() : from;
+                from.add(annotationType);
+            }
+        }
+        if (element instanceof TypeElement) {
+            if (isType) {
+                var pkg = elements.getPackageOf(element);
+                if (packages.computeIfAbsent(pkg.getQualifiedName().toString(), k -> registers(pkg))) {
+                    from = from == null ? new ArrayList<>() : from;
+                    from.add(pkg);
+                }
+                if (from != null)
+                    sources.put((TypeElement) element, from);
+            }
+            for (var enclosed : element.getEnclosedElements()) {
+                visit(enclosed);
+            }
+        }
+    }
+
+    private static boolean provides(List<Element> sources, Class<? extends Annotation> type) {
+        for (var source : sources) {
+            if (source.getAnnotation(type) != null)
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean registers(Element element) {
+        for (var type : REGISTERING) {
+            if (element.getAnnotation(type) != null)
+                return true;
+        }
+        return false;
+    }
+}
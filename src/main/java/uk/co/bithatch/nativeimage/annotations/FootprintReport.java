@@ -0,0 +1,348 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import javax.annotation.processing.Messager;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.tools.Diagnostic.Kind;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * How much each annotated type exposes to the image through each of the
+ * generated files, that is the constructors, methods, fields and nested
+ * classes that become reachable, and the bytes of matching resources. Query
+ * only flags are not counted, as they add metadata but no code.
+ */
+final class FootprintReport {
+    static final String JSON_FILE = "native-image-annotations-footprint.json";
+    static final String CSV_FILE = "native-image-annotations-footprint.csv";
+
+    enum Metric {
+        CONSTRUCTORS("constructors"), METHODS("methods"), FIELDS("fields"), CLASSES("classes"),
+        RESOURCE_BYTES("resourceBytes");
+
+        private final String key;
+
+        Metric(String key) {
+            this.key = key;
+        }
+
+        String key() {
+            return key;
+        }
+
+        static Metric of(String key) {
+            for (var metric : values()) {
+                if (metric.key.equals(key))
+                    return metric;
+            }
+            throw new IllegalArgumentException(key);
+        }
+    }
+
+    static final class Row {
+        private final String type;
+        private final String file;
+        private final long[] values = new long[Metric.values().length];
+        /* Each resource is only counted once, however many patterns match it */
+        private final Map<String, Long> resources = new TreeMap<>();
+
+        private Row(String type, String file) {
+            this.type = type;
+            this.file = file;
+        }
+
+        long get(Metric metric) {
+            if (metric == Metric.RESOURCE_BYTES)
+                return resources.values().stream().mapToLong(Long::longValue).sum();
+            return values[metric.ordinal()];
+        }
+
+        private void add(Metric metric, long value) {
+            values[metric.ordinal()] += value;
+        }
+
+        private void add(Row row) {
+            for (var i = 0; i < values.length; i++) {
+                values[i] += row.values[i];
+            }
+            resources.putAll(row.resources);
+        }
+
+        /* Everything but resources, which are counted in bytes */
+        long members() {
+            return get(Metric.CONSTRUCTORS) + get(Metric.METHODS) + get(Metric.FIELDS) + get(Metric.CLASSES);
+        }
+    }
+
+    private final NativeImageProcessor processor;
+    private final Elements elements;
+    private final ResourceEnumerator resources;
+    private final Map<String, Row> rows = new TreeMap<>();
+
+    FootprintReport(NativeImageProcessor processor, Elements elements, ResourceEnumerator resources) {
+        this.processor = processor;
+        this.elements = elements;
+        this.resources = resources;
+    }
+
+    /**
+     * Parse a budget such as <code>methods=2000,resourceBytes=1048576</code>.
+     */
+    static Map<Metric, Long> budget(String option, String value, Messager messager) {
+        var budget = new EnumMap<Metric, Long>(Metric.class);
+        for (var limit : value.split(",")) {
+            if (limit.isBlank())
+                continue;
+            var idx = limit.indexOf('=');
+            try {
+                budget.put(Metric.of(limit.substring(0, Math.max(0, idx)).trim()), Long.parseLong(limit.substring(idx + 1).trim()));
+            } catch (IllegalArgumentException e) {
+                messager.printMessage(Kind.WARNING, "[native-image-annotations] Invalid " + option + " '" + limit
+                        + "', expected <metric>=<number> where the metric is one of constructors, methods, fields, classes or resourceBytes.");
+            }
+        }
+        return budget;
+    }
+
+    void addReflection(String type, String file, JsonObject entry) {
+        var row = row(type, file);
+        var name = entry.get("name").getAsString();
+        var typeElement = typeElement(name);
+        var constructors = new HashSet<Object>();
+        var methods = new HashSet<Object>();
+        var fields = new HashSet<Object>();
+        var classes = new HashSet<Object>();
+        if (typeElement != null) {
+            for (var member : typeElement.getEnclosedElements()) {
+                var isPublic = member.getModifiers().contains(Modifier.PUBLIC);
+                if (member.getKind() == ElementKind.CONSTRUCTOR)
+                    addIf(constructors, member, flagged(entry, "Constructors", isPublic));
+                else if (member.getKind() == ElementKind.METHOD)
+                    addIf(methods, member, flagged(entry, "Methods", isPublic));
+                else if (member.getKind() == ElementKind.FIELD)
+                    addIf(fields, member, flagged(entry, "Fields", isPublic));
+                else if (member instanceof TypeElement)
+                    addIf(classes, member, flagged(entry, "Classes", isPublic));
+            }
+            /* Public members include those inherited */
+            for (var member : elements.getAllMembers(typeElement)) {
+                var isPublic = member.getModifiers().contains(Modifier.PUBLIC);
+                if (member.getKind() == ElementKind.METHOD)
+                    addIf(methods, member, isPublic && flag(entry, "allPublicMethods"));
+                else if (member.getKind() == ElementKind.FIELD)
+                    addIf(fields, member, isPublic && flag(entry, "allPublicFields"));
+            }
+        }
+        var explicitMethods = entry.getAsJsonArray("methods");
+        if (explicitMethods != null) {
+            for (var method : explicitMethods) {
+                var object = method.getAsJsonObject();
+                var key = object.get("name").getAsString() + parameters(object.getAsJsonArray("parameterTypes"));
+                var element = typeElement == null ? null : executable(typeElement, key);
+                (key.startsWith("<init>") ? constructors : methods).add(element == null ? key : element);
+            }
+        }
+        var explicitFields = entry.getAsJsonArray("fields");
+        if (explicitFields != null) {
+            for (var field : explicitFields) {
+                var fieldName = field.getAsJsonObject().get("name").getAsString();
+                Element element = null;
+                if (typeElement != null) {
+                    for (var f : ElementFilter.fieldsIn(typeElement.getEnclosedElements())) {
+                        if (f.getSimpleName().contentEquals(fieldName))
+                            element = f;
+                    }
+                }
+                fields.add(element == null ? fieldName : element);
+            }
+        }
+        row.add(Metric.CONSTRUCTORS, constructors.size());
+        row.add(Metric.METHODS, methods.size());
+        row.add(Metric.FIELDS, fields.size());
+        row.add(Metric.CLASSES, classes.size());
+    }
+
+    void addProxy(String type, String file, JsonObject entry) {
+        /* Every abstract method of the interfaces is implemented by the proxy */
+        var row = row(type, file);
+        var methods = new HashSet<String>();
+        for (var iface : entry.getAsJsonArray("interfaces")) {
+            var typeElement = typeElement(iface.getAsString());
+            if (typeElement != null) {
+                for (var method : ElementFilter.methodsIn(elements.getAllMembers(typeElement))) {
+                    if (method.getModifiers().contains(Modifier.ABSTRACT))
+                        methods.add(key(method));
+                }
+            }
+        }
+        row.add(Metric.CLASSES, 1);
+        row.add(Metric.METHODS, methods.size());
+    }
+
+    void addSerialization(String type, String file, JsonObject entry) {
+        /* The fields that are serialized, through those of its super classes */
+        var row = row(type, file);
+        var typeElement = typeElement(entry.get("name").getAsString());
+        if (typeElement != null) {
+            for (var field : ElementFilter.fieldsIn(elements.getAllMembers(typeElement))) {
+                if (!field.getModifiers().contains(Modifier.STATIC) && !field.getModifiers().contains(Modifier.TRANSIENT))
+                    row.add(Metric.FIELDS, 1);
+            }
+        }
+        row.add(Metric.CONSTRUCTORS, 1);
+    }
+
+    void addResource(String type, String file, JsonObject entry) {
+        row(type, file).resources.putAll(resources.matching(entry.get("pattern").getAsString()));
+    }
+
+    void addBundle(String type, String file, JsonObject entry) {
+        var name = entry.get("name").getAsString().replace('.', '/');
+        row(type, file).resources.putAll(resources.matching(Pattern.quote(name) + "(_[^/]*)?\\.properties"));
+    }
+
+    List<Row> rows() {
+        var sorted = new ArrayList<>(rows.values());
+        sorted.sort(Comparator.comparingLong(Row::members).thenComparingLong(r -> r.get(Metric.RESOURCE_BYTES)).reversed()
+                .thenComparing(r -> r.type).thenComparing(r -> r.file));
+        return sorted;
+    }
+
+    /**
+     * The totals for each annotated type, across all files.
+     */
+    Map<String, Row> types() {
+        var types = new TreeMap<String, Row>();
+        for (var row : rows.values()) {
+            types.computeIfAbsent(row.type, t -> new Row(t, "")).add(row);
+        }
+        return types;
+    }
+
+    Row total() {
+        var total = new Row("", "");
+        for (var row : rows.values()) {
+            total.add(row);
+        }
+        return total;
+    }
+
+    void write(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("total");
+        writeValues(writer, total());
+        writer.name("files");
+        writer.beginObject();
+        var files = new TreeMap<String, Row>();
+        for (var row : rows.values()) {
+            files.computeIfAbsent(row.file, f -> new Row("", f)).add(row);
+        }
+        for (var file : files.values()) {
+            writer.name(file.file);
+            writeValues(writer, file);
+        }
+        writer.endObject();
+        writer.name("types");
+        writer.beginArray();
+        for (var row : rows()) {
+            writer.beginObject();
+            writer.name("type").value(row.type);
+            writer.name("file").value(row.file);
+            for (var metric : Metric.values()) {
+                writer.name(metric.key()).value(row.get(metric));
+            }
+            writer.endObject();
+        }
+        writer.endArray();
+        writer.endObject();
+    }
+
+    void writeCsv(Writer writer) throws IOException {
+        writer.write("type,file");
+        for (var metric : Metric.values()) {
+            writer.write("," + metric.key());
+        }
+        writer.write("\n");
+        for (var row : rows()) {
+            writer.write(row.type + "," + row.file);
+            for (var metric : Metric.values()) {
+                writer.write("," + row.get(metric));
+            }
+            writer.write("\n");
+        }
+    }
+
+    private static void writeValues(JsonWriter writer, Row row) throws IOException {
+        writer.beginObject();
+        for (var metric : Metric.values()) {
+            writer.name(metric.key()).value(row.get(metric));
+        }
+        writer.endObject();
+    }
+
+    private Row row(String type, String file) {
+        return rows.computeIfAbsent(type + " " + file, k -> new Row(type, file));
+    }
+
+    private TypeElement typeElement(String binaryName) {
+        return elements.getTypeElement(binaryName.replace('$', '.'));
+    }
+
+    private ExecutableElement executable(TypeElement type, String key) {
+        for (var member : type.getEnclosedElements()) {
+            if ((member.getKind() == ElementKind.METHOD || member.getKind() == ElementKind.CONSTRUCTOR)
+                    && key((ExecutableElement) member).equals(key))
+                return (ExecutableElement) member;
+        }
+        return null;
+    }
+
+    private String key(ExecutableElement exec) {
+        var params = new ArrayList<String>();
+        for (var param : exec.getParameters()) {
+            params.add(processor.toTypeName(param.asType()));
+        }
+        return exec.getSimpleName() + "(" + String.join(",", params) + ")";
+    }
+
+    private static String parameters(JsonArray parameterTypes) {
+        var params = new ArrayList<String>();
+        if (parameterTypes != null)
+            parameterTypes.forEach(p -> params.add(p.getAsString()));
+        return "(" + String.join(",", params) + ")";
+    }
+
+    private static boolean flagged(JsonObject entry, String members, boolean isPublic) {
+        return flag(entry, "allDeclared" + members) || (isPublic && flag(entry, "allPublic" + members));
+    }
+
+    private static boolean flag(JsonObject entry, String name) {
+        var value = entry.get(name);
+        return value != null && value.getAsBoolean();
+    }
+
+    private static void addIf(Set<Object> members, Element member, boolean add) {
+        if (add)
+            members.add(member);
+    }
+}
@@ -0,0 +1,132 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.Messager;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic.Kind;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+final class ForeignLayouts {
+    static final String VOID = "void";
+    static final String POINTER = "void*";
+
+    private static final Map<TypeKind, String> PRIMITIVES = Map.of(TypeKind.BOOLEAN, "jboolean", TypeKind.BYTE, "jbyte",
+            TypeKind.SHORT, "jshort", TypeKind.CHAR, "jchar", TypeKind.INT, "jint", TypeKind.LONG, "jlong",
+            TypeKind.FLOAT, "jfloat", TypeKind.DOUBLE, "jdouble");
+    private static final Set<String> LAYOUTS = Set.of("jboolean", "jbyte", "jshort", "jchar", "jint", "jlong", "jfloat",
+            "jdouble", POINTER);
+
+    private final Messager messager;
+
+    ForeignLayouts(Messager messager) {
+        this.messager = messager;
+    }
+
+    /**
+     * The layout a Java type is passed as, or <code>null</code> if it cannot
+     * be passed to or from native code.
+     */
+    static String layoutOf(TypeMirror type) {
+        if (type.getKind() == TypeKind.VOID)
+            return VOID;
+        if (PRIMITIVES.containsKey(type.getKind()))
+            return PRIMITIVES.get(type.getKind());
+        if (type.getKind() == TypeKind.DECLARED && ((TypeElement) ((DeclaredType) type).asElement()).getQualifiedName()
+                .contentEquals("java.lang.foreign.MemorySegment"))
+            return POINTER;
+        return null;
+    }
+
+    /**
+     * Build the descriptor for an annotated method or field. For a method, the
+     * layouts may be left out and are then taken from its signature, otherwise
+     * they must agree with it. A field (holding a method handle or stub) has no
+     * signature, so the layouts must be given. Returns <code>null</code> after
+     * reporting an error if the descriptor is not valid.
+     */
+    JsonObject describe(Element element, String annotation, String returnType, String[] parameterTypes) {
+        String ret;
+        var params = new ArrayList<String>();
+        if (element.getKind() == ElementKind.METHOD) {
+            var exec = (ExecutableElement) element;
+            var derived = new ArrayList<String>();
+            for (var param : exec.getParameters()) {
+                var layout = layoutOf(param.asType());
+                if (layout == null) {
+                    error(element, annotation, "Parameter " + param.getSimpleName() + " of type " + param.asType()
+                            + " cannot be passed to or from native code.");
+                    return null;
+                }
+                derived.add(layout);
+            }
+            var derivedReturn = layoutOf(exec.getReturnType());
+            if (derivedReturn == null) {
+                error(element, annotation, "Return type " + exec.getReturnType() + " cannot be passed to or from native code.");
+                return null;
+            }
+            if (returnType.isEmpty() && parameterTypes.length == 0) {
+                ret = derivedReturn;
+                params.addAll(derived);
+            } else {
+                ret = returnType.isEmpty() ? derivedReturn : returnType;
+                params.addAll(List.of(parameterTypes));
+                if (!ret.equals(derivedReturn)) {
+                    error(element, annotation, "Return layout '" + ret + "' does not match the method, which returns "
+                            + exec.getReturnType() + " (" + derivedReturn + ").");
+                    return null;
+                }
+                if (!params.equals(derived)) {
+                    error(element, annotation, "Parameter layouts " + params + " do not match the method, which takes "
+                            + derived + ".");
+                    return null;
+                }
+            }
+        } else {
+            if (!element.getModifiers().contains(Modifier.STATIC)) {
+                error(element, annotation, "Only static fields may describe foreign calls.");
+                return null;
+            }
+            if (returnType.isEmpty()) {
+                error(element, annotation, "A field must give the returnType, and any parameterTypes.");
+                return null;
+            }
+            ret = returnType;
+            params.addAll(List.of(parameterTypes));
+        }
+
+        if (!ret.equals(VOID) && !LAYOUTS.contains(ret)) {
+            error(element, annotation, "Unknown return layout '" + ret + "', expected void or one of " + LAYOUTS + ".");
+            return null;
+        }
+        var paramArray = new JsonArray();
+        for (var param : params) {
+            if (!LAYOUTS.contains(param)) {
+                error(element, annotation, "Unknown parameter layout '" + param + "', expected one of " + LAYOUTS + ".");
+                return null;
+            }
+            paramArray.add(param);
+        }
+
+        var object = new JsonObject();
+        object.addProperty("returnType", ret);
+        object.add("parameterTypes", paramArray);
+        return object;
+    }
+
+    private void error(Element element, String annotation, String message) {
+        messager.printMessage(Kind.ERROR, "[native-image-annotations] @" + annotation + ": " + message, element);
+    }
+}
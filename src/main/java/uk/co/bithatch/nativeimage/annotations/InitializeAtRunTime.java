@@ -0,0 +1,11 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@Target({ ElementType.TYPE, ElementType.PACKAGE })
+@Retention(RetentionPolicy.CLASS)
+public @interface InitializeAtRunTime {
+}
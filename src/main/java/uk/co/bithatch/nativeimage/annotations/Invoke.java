@@ -5,8 +5,8 @@ import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
-@Target({ ElementType.TYPE, ElementType.ANNOTATION_TYPE })
-@Retention(RetentionPolicy.SOURCE)
+@Target({ ElementType.TYPE, ElementType.ANNOTATION_TYPE, ElementType.PACKAGE })
+@Retention(RetentionPolicy.CLASS)
 public @interface Invoke {
 	boolean all() default false;
 	
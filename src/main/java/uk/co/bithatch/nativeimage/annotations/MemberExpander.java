@@ -0,0 +1,121 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Elements.Origin;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+final class MemberExpander {
+
+    enum Exclude {
+        SYNTHETIC, BRIDGE, OBJECT, NONPUBLIC
+    }
+
+    static final String DEFAULT_EXCLUDES = "synthetic,bridge,object";
+
+    private final NativeImageProcessor processor;
+    private final Elements elements;
+    private final Set<Exclude> excludes;
+
+    MemberExpander(NativeImageProcessor processor, Elements elements, Set<Exclude> excludes) {
+        this.processor = processor;
+        this.elements = elements;
+        this.excludes = excludes.isEmpty() ? EnumSet.noneOf(Exclude.class) : EnumSet.copyOf(excludes);
+    }
+
+    void expand(RoundEnvironment roundEnvironment, JsonArray array, JsonObject object, TypeElement type) {
+        var declaredConstructors = remove(object, "allDeclaredConstructors");
+        var publicConstructors = remove(object, "allPublicConstructors");
+        var declaredMethods = remove(object, "allDeclaredMethods");
+        var publicMethods = remove(object, "allPublicMethods");
+        var declaredFields = remove(object, "allDeclaredFields");
+        var publicFields = remove(object, "allPublicFields");
+
+        if (declaredConstructors || publicConstructors) {
+            for (var ctor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+                if ((declaredConstructors || isPublic(ctor)) && include(ctor))
+                    processor.addMethodClassReflection(roundEnvironment, object, ctor);
+            }
+        }
+
+        if (declaredMethods) {
+            for (var method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+                if (include(method))
+                    processor.addMethodClassReflection(roundEnvironment, object, method);
+            }
+        }
+        if (publicMethods) {
+            /*
+             * Public methods include those inherited, that is what the flag exposes.
+             * They are registered against the class that declares them.
+             */
+            for (var method : ElementFilter.methodsIn(elements.getAllMembers(type))) {
+                if (isPublic(method) && include(method) && !(declaredMethods && method.getEnclosingElement().equals(type)))
+                    processor.addMethodClassReflection(roundEnvironment, declaring(array, object, type, method), method);
+            }
+        }
+
+        if (declaredFields) {
+            for (var field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+                if (include(field))
+                    processor.addFieldClassReflection(roundEnvironment, object, field);
+            }
+        }
+        if (publicFields) {
+            for (var field : ElementFilter.fieldsIn(elements.getAllMembers(type))) {
+                if (isPublic(field) && include(field) && !(declaredFields && field.getEnclosingElement().equals(type)))
+                    processor.addFieldClassReflection(roundEnvironment, declaring(array, object, type, field), field);
+            }
+        }
+    }
+
+    private JsonObject declaring(JsonArray array, JsonObject object, TypeElement type, Element member) {
+        var declaring = (TypeElement) member.getEnclosingElement();
+        if (declaring.equals(type))
+            return object;
+        var declaringObject = new JsonObject();
+        declaringObject.addProperty("name", processor.toClassName(declaring));
+        if (object.has("condition"))
+            declaringObject.add("condition", object.get("condition").deepCopy());
+        var key = ReflectionIndex.key(declaringObject);
+        for (var entry : array) {
+            if (ReflectionIndex.key(entry.getAsJsonObject()).equals(key))
+                return entry.getAsJsonObject();
+        }
+        array.add(declaringObject);
+        return declaringObject;
+    }
+
+    private boolean include(Element element) {
+        if (excludes.contains(Exclude.SYNTHETIC) && elements.getOrigin(element) == Origin.SYNTHETIC)
+            return false;
+        if (excludes.contains(Exclude.BRIDGE) && element instanceof ExecutableElement
+                && elements.isBridge((ExecutableElement) element))
+            return false;
+        if (excludes.contains(Exclude.OBJECT)
+                && ((TypeElement) element.getEnclosingElement()).getQualifiedName().contentEquals("java.lang.Object"))
+            return false;
+        if (excludes.contains(Exclude.NONPUBLIC) && !isPublic(element))
+            return false;
+        return true;
+    }
+
+    private static boolean isPublic(Element element) {
+        return element.getModifiers().contains(Modifier.PUBLIC);
+    }
+
+    private static boolean remove(JsonObject object, String flag) {
+        var value = object.remove(flag);
+        return value != null && value.getAsBoolean();
+    }
+}
@@ -0,0 +1,132 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+import java.util.stream.StreamSupport;
+
+import javax.annotation.processing.Filer;
+import javax.tools.JavaFileManager.Location;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+final class MetadataState {
+    static final String STATE_FILE = ".native-image-annotations-state.json";
+    static final int VERSION = 1;
+
+    private final Map<String, Map<String, JsonArray>> types = new TreeMap<>();
+
+    JsonArray get(String originatingType, String section) {
+        return types.computeIfAbsent(originatingType, k -> new TreeMap<>()).computeIfAbsent(section,
+                k -> new JsonArray());
+    }
+
+    void clear(String originatingType) {
+        types.remove(originatingType);
+    }
+
+    void retain(Predicate<String> originatingType) {
+        types.keySet().removeIf(originatingType.negate());
+    }
+
+    Set<String> types() {
+        return types.keySet();
+    }
+
+    int size() {
+        return types.size();
+    }
+
+    int count(String section) {
+        var count = 0;
+        for (var type : types.values()) {
+            var arr = type.get(section);
+            if (arr != null)
+                count += arr.size();
+        }
+        return count;
+    }
+
+    Iterable<JsonElement> entries(String section) {
+        return () -> types.values().stream().map(type -> type.get(section)).filter(Objects::nonNull)
+                .flatMap(arr -> StreamSupport.stream(arr.spliterator(), false)).iterator();
+    }
+
+    void load(Filer filer, Location location, String path) {
+        types.clear();
+        JsonObject root;
+        try {
+            var resource = filer.getResource(location, "", path);
+            try (var r = new InputStreamReader(resource.openInputStream(), StandardCharsets.UTF_8)) {
+                root = JsonParser.parseReader(r).getAsJsonObject();
+            }
+        } catch (IOException | IllegalArgumentException | JsonParseException | IllegalStateException e) {
+            /* No previous state, or not readable. Everything will be derived */
+            return;
+        }
+        if (!root.has("version") || root.get("version").getAsInt() != VERSION)
+            return;
+
+        for (var type : root.getAsJsonObject("types").entrySet()) {
+            var sections = new TreeMap<String, JsonArray>();
+            for (var section : type.getValue().getAsJsonObject().entrySet()) {
+                sections.put(section.getKey(), section.getValue().getAsJsonArray());
+            }
+            types.put(type.getKey(), sections);
+        }
+    }
+
+    void save(Filer filer, Location location, String path) throws IOException {
+        var root = new JsonObject();
+        root.addProperty("version", VERSION);
+        var typesObject = new JsonObject();
+        for (var type : types.entrySet()) {
+            var sections = new JsonObject();
+            for (var section : type.getValue().entrySet()) {
+                if (section.getValue().size() > 0)
+                    sections.add(section.getKey(), section.getValue());
+            }
+            typesObject.add(type.getKey(), sections);
+        }
+        root.add("types", typesObject);
+
+        /*
+         * Written directly rather than through the Filer where possible, so that
+         * build tools that delete tracked generated files before an incremental
+         * compilation do not also throw away the state needed to preserve
+         * entries for types they will not be reprocessing.
+         */
+        var uri = filer.getResource(location, "", path).toUri();
+        if ("file".equals(uri.getScheme())) {
+            var file = Paths.get(uri);
+            Files.createDirectories(file.getParent());
+            try (var w = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+                write(root, w);
+            }
+        } else {
+            var resource = filer.createResource(location, "", path);
+            try (var w = new BufferedWriter(new OutputStreamWriter(resource.openOutputStream(), StandardCharsets.UTF_8))) {
+                write(root, w);
+            }
+        }
+    }
+
+    private static void write(JsonObject root, Writer w) {
+        new Gson().toJson(root, w);
+    }
+}
@@ -0,0 +1,35 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@Target({ ElementType.MODULE, ElementType.PACKAGE })
+@Retention(RetentionPolicy.CLASS)
+public @interface NativeImageOptions {
+	
+	public enum Collector {
+		DEFAULT, SERIAL, G1, EPSILON
+	}
+	
+	public enum Monitoring {
+		ALL, HEAPDUMP, JFR, JVMSTAT, JMXSERVER, JMXCLIENT, THREADDUMP, NMT
+	}
+
+	String optimize() default "";
+
+	Collector gc() default Collector.DEFAULT;
+
+	String march() default "";
+
+	String[] pgo() default {};
+
+	boolean pgoInstrument() default false;
+
+	boolean enablePreview() default false;
+
+	Monitoring[] monitoring() default {};
+
+	String[] args() default {};
+}
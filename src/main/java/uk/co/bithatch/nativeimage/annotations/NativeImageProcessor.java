@@ -1,142 +1,521 @@
 package uk.co.bithatch.nativeimage.annotations;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.DigestOutputStream;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Supplier;
 
 import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.ProcessingEnvironment;
 import javax.annotation.processing.Processor;
 import javax.annotation.processing.RoundEnvironment;
-import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.annotation.processing.SupportedOptions;
+import javax.lang.model.SourceVersion;
 import javax.lang.model.element.Element;
 import javax.lang.model.element.ElementKind;
 import javax.lang.model.element.ExecutableElement;
 import javax.lang.model.element.Modifier;
 import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.QualifiedNameable;
 import javax.lang.model.element.TypeElement;
 import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
 import javax.lang.model.type.MirroredTypeException;
+import javax.lang.model.type.MirroredTypesException;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.JavaFileManager.Location;
 import javax.tools.StandardLocation;
 
 import com.google.auto.service.AutoService;
+import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.stream.JsonWriter;
 
-@SupportedAnnotationTypes({ 
-		"uk.co.bithatch.nativeimage.annotations.Reflectable",
-        "uk.co.bithatch.nativeimage.annotations.Resource", 
-        "uk.co.bithatch.nativeimage.annotations.Proxy",
-        "uk.co.bithatch.nativeimage.annotations.Serialization",
-        "uk.co.bithatch.nativeimage.annotations.OtherReflectable",
-        "uk.co.bithatch.nativeimage.annotations.OtherReflectables",
-        "uk.co.bithatch.nativeimage.annotations.TypeReflect", 
-        "uk.co.bithatch.nativeimage.annotations.Query",
-        "uk.co.bithatch.nativeimage.annotations.Invoke", 
-        "uk.co.bithatch.nativeimage.annotations.Bundle" })
+@SupportedOptions({ 
+        NativeImageProcessor.PROJECT_OPTION, 
+        NativeImageProcessor.RESOURCE_PATH_OPTION,
+        NativeImageProcessor.INCREMENTAL_OPTION, 
+        NativeImageProcessor.COMPACT_OPTION,
+        NativeImageProcessor.VERBOSITY_OPTION, 
+        NativeImageProcessor.STATS_OPTION,
+        NativeImageProcessor.EXPAND_OPTION, 
+        NativeImageProcessor.EXPAND_EXCLUDE_OPTION,
+        NativeImageProcessor.FORMAT_OPTION,
+        NativeImageProcessor.RESOURCES_OPTION,
+        NativeImageProcessor.RESOURCES_DIRS_OPTION,
+        NativeImageProcessor.RESOURCES_INDEX_OPTION,
+        NativeImageProcessor.SERVICES_REGISTRY_OPTION,
+        NativeImageProcessor.BUNDLES_OPTION,
+        NativeImageProcessor.PROXIES_OPTION,
+        NativeImageProcessor.CLOSURE_OPTION,
+        NativeImageProcessor.CLOSURE_DEPTH_OPTION,
+        NativeImageProcessor.CLOSURE_PACKAGES_OPTION,
+        NativeImageProcessor.MERGE_OPTION,
+        NativeImageProcessor.FOOTPRINT_OPTION,
+        NativeImageProcessor.BUDGET_OPTION,
+        NativeImageProcessor.BUDGET_TYPE_OPTION,
+        NativeImageProcessor.BUDGET_ACTION_OPTION,
+        NativeImageProcessor.BASELINE_OPTION,
+        NativeImageProcessor.BASELINE_MAX_OPTION,
+        NativeImageProcessor.STEREOTYPES_OPTION })
 //@SupportedSourceVersion(SourceVersion.RELEASE_11)
 @AutoService(Processor.class)
 public class NativeImageProcessor extends AbstractProcessor {
     public static final String RESOURCE_PATH = "META-INF/native-image";
+    /* State and reports only used by the build, outside of the configuration native-image reads */
+    public static final String BUILD_PATH = "META-INF/native-image-annotations";
     public static final String PROJECT_OPTION = "project";
     public static final String RESOURCE_PATH_OPTION = "path";
     public static final String CLI_OPTIONS_OPTION = "cli-options";
+    public static final String INCREMENTAL_OPTION = "incremental";
+    public static final String COMPACT_OPTION = "compact";
+    public static final String VERBOSITY_OPTION = "verbosity";
+    public static final String STATS_OPTION = "stats";
+    public static final String EXPAND_OPTION = "expand";
+    public static final String EXPAND_EXCLUDE_OPTION = "expand.exclude";
+    public static final String FORMAT_OPTION = "format";
+    public static final String RESOURCES_OPTION = "resources";
+    public static final String RESOURCES_DIRS_OPTION = "resources.dirs";
+    public static final String RESOURCES_INDEX_OPTION = "resources.index";
+    public static final String SERVICES_REGISTRY_OPTION = "services.registry";
+    public static final String BUNDLES_OPTION = "bundles";
+    public static final String PROXIES_OPTION = "proxies";
+    public static final String CLOSURE_OPTION = "closure";
+    public static final String CLOSURE_DEPTH_OPTION = "closure.depth";
+    public static final String CLOSURE_PACKAGES_OPTION = "closure.packages";
+    public static final String MERGE_OPTION = "merge";
+    public static final String FOOTPRINT_OPTION = "footprint";
+    public static final String BUDGET_OPTION = "budget";
+    public static final String BUDGET_TYPE_OPTION = "budget.type";
+    public static final String BUDGET_ACTION_OPTION = "budget.action";
+    public static final String BASELINE_OPTION = "baseline";
+    public static final String BASELINE_MAX_OPTION = "baseline.max";
+    public static final String STEREOTYPES_OPTION = "stereotypes";
+
+    enum Verbosity {
+        OFF, SUMMARY, DEBUG
+    }
+
+    static final String REFLECTION = "reflection";
+    static final String PROXIES = "proxies";
+    static final String SERIALIZATION = "serialization";
+    static final String RESOURCES = "resources";
+    static final String BUNDLES = "bundles";
+    static final String BUILD_TIME = "buildTime";
+    static final String RUN_TIME = "runTime";
+    static final String OPTIONS = "options";
+    static final String JNI = "jni";
+    static final String DOWNCALLS = "downcalls";
+    static final String UPCALLS = "upcalls";
+    static final String SERVICES = "services";
+    static final String SERVICES_PATH = "META-INF/services/";
+    /* Providers above this line in a services file were put there by hand, and are kept */
+    static final String SERVICES_MARKER = "# Generated by native-image-annotations";
+    static final String UNIFIED_FILE = "reachability-metadata.json";
+    static final String DIFF_FILE = "native-image-annotations-diff.json";
+    /*
+     * Build tools keep generated sources out of the jar, so the state and reports
+     * go there rather than next to the classes
+     */
+    static final Location BUILD_LOCATION = StandardLocation.SOURCE_OUTPUT;
+
+    /* The annotations of this library, all that is looked at without stereotypes */
+    static final Set<String> ANNOTATION_TYPES = Set.of(Reflectable.class.getName(), TypeReflect.class.getName(),
+            Invoke.class.getName(), Query.class.getName(), Serialization.class.getName(), Proxy.class.getName(),
+            Resource.class.getName(), Bundle.class.getName(), Jni.class.getName(), Condition.class.getName(),
+            OtherReflectable.class.getName(), OtherReflectables.class.getName(), OtherSerializable.class.getName(),
+            OtherSerializables.class.getName(), InitializeAtBuildTime.class.getName(),
+            InitializeAtRunTime.class.getName(), NativeImageOptions.class.getName(), Downcall.class.getName(),
+            Upcall.class.getName(), ServiceProvider.class.getName());
+
+    private final MetadataState state = new MetadataState();
+    private final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+    private boolean incremental;
+    private boolean stereotypes;
+    /* Whether configuration was derived by an earlier compilation */
+    private boolean derived;
+    private boolean compact;
+    private boolean pruned;
+    private boolean writeStats;
+    private Verbosity verbosity = Verbosity.SUMMARY;
+    private ProcessorStats stats = new ProcessorStats();
+    private MemberExpander expander;
+    private boolean unified;
+    private ResourceEnumerator enumerator;
+    private BundleGenerator bundleGenerator;
+    private AccessorGenerator accessorGenerator;
+    private ProxyGenerator proxyGenerator;
+    private ForeignLayouts foreign;
+    private SignatureClosure closure;
+    private final OutputManifest manifest = new OutputManifest();
+    /* The files written by an earlier compilation */
+    private Set<String> written = Set.of();
+    private ElementIndex index;
+    private ResourceIndexGenerator resourceIndex;
+    private ServiceRegistryGenerator serviceRegistry;
+    private Map<String, List<String>> registered;
+    private String footprint;
+    private Map<FootprintReport.Metric, Long> budget;
+    private Map<FootprintReport.Metric, Long> typeBudget;
+    private Kind budgetKind = Kind.ERROR;
+    private String baseline;
+    private Map<ConfigDiff.Metric, Integer> baselineMax;
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        incremental = !"false".equals(processingEnv.getOptions().get(INCREMENTAL_OPTION));
+        compact = "true".equals(processingEnv.getOptions().get(COMPACT_OPTION));
+        stereotypes = "true".equals(processingEnv.getOptions().get(STEREOTYPES_OPTION));
+        writeStats = "true".equals(processingEnv.getOptions().get(STATS_OPTION));
+        var verbosityOption = processingEnv.getOptions().get(VERBOSITY_OPTION);
+        if (verbosityOption != null) {
+            try {
+                verbosity = Verbosity.valueOf(verbosityOption.toUpperCase());
+            } catch (IllegalArgumentException iae) {
+                processingEnv.getMessager().printMessage(Kind.WARNING, "[native-image-annotations] Unknown "
+                        + VERBOSITY_OPTION + " '" + verbosityOption + "', expected off, summary or debug.");
+            }
+        }
+        var format = processingEnv.getOptions().getOrDefault(FORMAT_OPTION, "legacy");
+        if (format.equals("unified")) {
+            unified = true;
+        } else if (!format.equals("legacy")) {
+            processingEnv.getMessager().printMessage(Kind.WARNING, "[native-image-annotations] Unknown "
+                    + FORMAT_OPTION + " '" + format + "', expected legacy or unified.");
+        }
+        if ("true".equals(processingEnv.getOptions().get(EXPAND_OPTION))) {
+            var excludes = EnumSet.noneOf(MemberExpander.Exclude.class);
+            var excludeOption = processingEnv.getOptions().getOrDefault(EXPAND_EXCLUDE_OPTION, MemberExpander.DEFAULT_EXCLUDES);
+            for (var exclude : excludeOption.split(",")) {
+                if (exclude.isBlank())
+                    continue;
+                try {
+                    excludes.add(MemberExpander.Exclude.valueOf(exclude.trim().toUpperCase()));
+                } catch (IllegalArgumentException iae) {
+                    processingEnv.getMessager().printMessage(Kind.WARNING, "[native-image-annotations] Unknown "
+                            + EXPAND_EXCLUDE_OPTION + " '" + exclude + "', expected synthetic, bridge, object or nonpublic.");
+                }
+            }
+            expander = new MemberExpander(this, processingEnv.getElementUtils(), excludes);
+        }
+        footprint = processingEnv.getOptions().get(FOOTPRINT_OPTION);
+        if ("true".equals(footprint)) {
+            footprint = "json";
+        } else if (footprint != null && !footprint.equals("json") && !footprint.equals("csv")) {
+            processingEnv.getMessager().printMessage(Kind.WARNING, "[native-image-annotations] Unknown "
+                    + FOOTPRINT_OPTION + " '" + footprint + "', expected json or csv.");
+            footprint = null;
+        }
+        var budgetOption = processingEnv.getOptions().get(BUDGET_OPTION);
+        if (budgetOption != null)
+            budget = FootprintReport.budget(BUDGET_OPTION, budgetOption, processingEnv.getMessager());
+        var typeBudgetOption = processingEnv.getOptions().get(BUDGET_TYPE_OPTION);
+        if (typeBudgetOption != null)
+            typeBudget = FootprintReport.budget(BUDGET_TYPE_OPTION, typeBudgetOption, processingEnv.getMessager());
+        var budgetAction = processingEnv.getOptions().getOrDefault(BUDGET_ACTION_OPTION, "error");
+        if (budgetAction.equals("warn")) {
+            budgetKind = Kind.WARNING;
+        } else if (!budgetAction.equals("error")) {
+            processingEnv.getMessager().printMessage(Kind.WARNING, "[native-image-annotations] Unknown "
+                    + BUDGET_ACTION_OPTION + " '" + budgetAction + "', expected error or warn.");
+        }
+        baseline = processingEnv.getOptions().get(BASELINE_OPTION);
+        var baselineMaxOption = processingEnv.getOptions().get(BASELINE_MAX_OPTION);
+        if (baselineMaxOption != null) {
+            try {
+                baselineMax = ConfigDiff.limits(baselineMaxOption);
+            } catch (IllegalArgumentException iae) {
+                processingEnv.getMessager().printMessage(Kind.WARNING, "[native-image-annotations] Invalid "
+                        + BASELINE_MAX_OPTION + " '" + baselineMaxOption + "', expected <metric>=<number> where the metric is one of "
+                        + "classes, flags, members, proxies, serialization, resources or widened.");
+            }
+        }
+        var resourceIndexOption = processingEnv.getOptions().get(RESOURCES_INDEX_OPTION);
+        if (resourceIndexOption != null) {
+            if (SourceVersion.isName(resourceIndexOption)) {
+                resourceIndex = new ResourceIndexGenerator(processingEnv.getFiler(), resourceIndexOption,
+                        createRelativePath(ResourceIndexGenerator.INDEX_FILE));
+            } else {
+                processingEnv.getMessager().printMessage(Kind.WARNING, "[native-image-annotations] Invalid "
+                        + RESOURCES_INDEX_OPTION + " '" + resourceIndexOption + "', expected a class name.");
+            }
+        }
+        var serviceRegistryOption = processingEnv.getOptions().get(SERVICES_REGISTRY_OPTION);
+        if (serviceRegistryOption != null) {
+            if (SourceVersion.isName(serviceRegistryOption)) {
+                serviceRegistry = new ServiceRegistryGenerator(processingEnv.getFiler(), serviceRegistryOption);
+            } else {
+                processingEnv.getMessager().printMessage(Kind.WARNING, "[native-image-annotations] Invalid "
+                        + SERVICES_REGISTRY_OPTION + " '" + serviceRegistryOption + "', expected a class name.");
+            }
+        }
+        var resourcesOption = processingEnv.getOptions().getOrDefault(RESOURCES_OPTION, "patterns");
+        try {
+            var mode = ResourceEnumerator.Mode.valueOf(resourcesOption.toUpperCase());
+            /* Resources are also listed to measure or index them */
+            if (mode != ResourceEnumerator.Mode.PATTERNS || footprint != null || budget != null || typeBudget != null
+                    || resourceIndex != null) {
+                enumerator = new ResourceEnumerator(mode, processingEnv.getMessager(), createRelativePath(""));
+                enumerator.addClassOutput(processingEnv.getFiler());
+                var dirs = processingEnv.getOptions().get(RESOURCES_DIRS_OPTION);
+                if (dirs != null)
+                    enumerator.addDirectories(dirs);
+            }
+        } catch (IllegalArgumentException iae) {
+            processingEnv.getMessager().printMessage(Kind.WARNING, "[native-image-annotations] Unknown "
+                    + RESOURCES_OPTION + " '" + resourcesOption + "', expected patterns, literal or glob.");
+        }
+        index = new ElementIndex(processingEnv.getElementUtils(), stereotypes);
+        foreign = new ForeignLayouts(processingEnv.getMessager());
+        accessorGenerator = new AccessorGenerator(this, processingEnv.getFiler(), processingEnv.getElementUtils(),
+                processingEnv.getTypeUtils());
+        var proxiesOption = processingEnv.getOptions().getOrDefault(PROXIES_OPTION, "dynamic");
+        if (proxiesOption.equals("static")) {
+            proxyGenerator = new ProxyGenerator(this, processingEnv.getFiler(), processingEnv.getElementUtils(),
+                    processingEnv.getTypeUtils());
+        } else if (!proxiesOption.equals("dynamic")) {
+            processingEnv.getMessager().printMessage(Kind.WARNING, "[native-image-annotations] Unknown "
+                    + PROXIES_OPTION + " '" + proxiesOption + "', expected dynamic or static.");
+        }
+        var bundlesOption = processingEnv.getOptions().getOrDefault(BUNDLES_OPTION, "resources");
+        if (bundlesOption.equals("classes")) {
+            bundleGenerator = new BundleGenerator(processingEnv.getFiler(), processingEnv.getElementUtils(),
+                    processingEnv.getMessager(), processingEnv.getOptions().get(RESOURCES_DIRS_OPTION));
+        } else if (!bundlesOption.equals("resources")) {
+            processingEnv.getMessager().printMessage(Kind.WARNING, "[native-image-annotations] Unknown "
+                    + BUNDLES_OPTION + " '" + bundlesOption + "', expected resources or classes.");
+        }
+        if ("true".equals(processingEnv.getOptions().get(CLOSURE_OPTION))) {
+            var depth = 3;
+            var depthOption = processingEnv.getOptions().get(CLOSURE_DEPTH_OPTION);
+            if (depthOption != null) {
+                try {
+                    depth = Integer.parseInt(depthOption);
+                } catch (NumberFormatException nfe) {
+                    processingEnv.getMessager().printMessage(Kind.WARNING, "[native-image-annotations] Invalid "
+                            + CLOSURE_DEPTH_OPTION + " '" + depthOption + "', expected a number.");
+                }
+            }
+            var packages = new ArrayList<String>();
+            for (var pkg : processingEnv.getOptions().getOrDefault(CLOSURE_PACKAGES_OPTION, "").split(",")) {
+                if (!pkg.isBlank())
+                    packages.add(pkg.trim());
+            }
+            closure = new SignatureClosure(this, processingEnv.getElementUtils(), depth, packages,
+                    List.of(SignatureClosure.DEFAULT_EXCLUDES.split(",")));
+        }
+        written = OutputManifest.load(processingEnv.getFiler(), BUILD_LOCATION, createBuildPath(OutputManifest.MANIFEST_FILE));
+        if (incremental) {
+            state.load(processingEnv.getFiler(), BUILD_LOCATION, createBuildPath(MetadataState.STATE_FILE));
+            derived = state.size() > 0;
+        }
+    }
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        /*
+         * Stereotypes are the user's own annotations, so with them any element
+         * may need to be looked at. Otherwise, incremental builds only give the
+         * processor the types that have this library's annotations. Only this
+         * library's own annotations are ever claimed.
+         */
+        return stereotypes ? Set.of("*") : ANNOTATION_TYPES;
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
 
     @Override
     public boolean process(Set<? extends TypeElement> typeElements, RoundEnvironment roundEnvironment) {
         printMessage(roundEnvironment,
                 "Processing native annotations in " + roundEnvironment.toString() + " / " + typeElements);
-        if (typeElements.isEmpty()) {
-            printMessage(roundEnvironment, "Nothing to process here.");
-            return true;
+        stats.round();
+        var started = System.nanoTime();
+
+        if (!pruned) {
+            /* Forget about types that no longer exist at all */
+            var elements = processingEnv.getElementUtils();
+            state.retain(name -> elements.getTypeElement(name.replace('$', '.')) != null
+                    || elements.getPackageElement(name) != null || elements.getModuleElement(name) != null);
+            pruned = true;
         }
-        
-        var cliOptions = "true".equals(processingEnv.getOptions().get(CLI_OPTIONS_OPTION));
 
-        var gson = new GsonBuilder().disableHtmlEscaping().setPrettyPrinting().create();
-        var proxies = new JsonArray();
-        var serials = new JsonArray();
-        var resourcesRoot = new JsonObject();
-        var reflection = new JsonArray();
-        var args = new ArrayList<String>();
+        /* Anything being compiled now is derived again from scratch */
+        for (var element : roundEnvironment.getRootElements()) {
+            if (element instanceof TypeElement)
+                state.clear(toClassName((TypeElement) element));
+            else if (element instanceof QualifiedNameable)
+                state.clear(((QualifiedNameable) element).getQualifiedName().toString());
+            if (element instanceof PackageElement) {
+                /* As are the types the package may register, compiled now or not */
+                for (var type : ElementFilter.typesIn(element.getEnclosedElements()))
+                    state.clear(toClassName(type));
+            }
+            if (enumerator != null)
+                enumerator.addSourceRoot(processingEnv.getFiler(), processingEnv.getElementUtils(), element);
+        }
+        stats.phase(ProcessorStats.DISCOVERY, started);
+
+        if (resourceIndex != null && !roundEnvironment.processingOver())
+            resourceIndex.generate();
+
+        /*
+         * Even without any annotations, types compiled now may still be
+         * registered by their package or a stereotype, so are always indexed
+         */
+        collectElements(roundEnvironment);
 
-        var resourceEls = roundEnvironment.getElementsAnnotatedWith(Resource.class);
-        var reflectableEls = roundEnvironment.getElementsAnnotatedWith(Reflectable.class);
-        var otherReflectableEls = roundEnvironment.getElementsAnnotatedWith(OtherReflectable.class);
-        var otherReflectablesEls = roundEnvironment.getElementsAnnotatedWith(OtherReflectables.class);
-        var bundleEls = roundEnvironment.getElementsAnnotatedWith(Bundle.class);
-        var proxyEls = roundEnvironment.getElementsAnnotatedWith(Proxy.class);
-        var serialEls = roundEnvironment.getElementsAnnotatedWith(Serialization.class);
-        var otherSerialEls = roundEnvironment.getElementsAnnotatedWith(OtherSerializable.class);
-        var otherSerialsEls = roundEnvironment.getElementsAnnotatedWith(OtherSerializables.class);
-
-        printMessage(roundEnvironment, "  Resource elements: " + resourceEls.size());
-        printMessage(roundEnvironment, "  Reflectable elements: " + reflectableEls.size());
-        printMessage(roundEnvironment, "  Bundle elements: " + bundleEls.size());
-        printMessage(roundEnvironment, "  Proxy elements: " + proxyEls.size());
-        printMessage(roundEnvironment, "  Serialization elements: " + serialEls.size());
-        printMessage(roundEnvironment, "  Other single reflectable classes: " + otherReflectableEls.size());
-        printMessage(roundEnvironment, "  Other multiple reflectable classes: " + otherReflectablesEls.size());
-        printMessage(roundEnvironment, "  Other single serializable classes: " + otherSerialEls.size());
-        printMessage(roundEnvironment, "  Other multiple serializable classes: " + otherSerialsEls.size());
-
-        /* Default resources */
-        var resourcesIncludes = new JsonArray();
-        var resources = new JsonObject();
-        resources.add("includes", resourcesIncludes);
-        resourcesRoot.add("resources", resources);
-        var resourceBundles = new JsonArray();
-        resourcesRoot.add("bundles", resourceBundles);
+        /*
+         * Generated once everything given to the compiler has been processed, but
+         * before the last round, so it is compiled without a warning.
+         */
+        if (serviceRegistry != null && registered == null && !roundEnvironment.processingOver())
+            generateServiceRegistry();
+
+        /*
+         * Other processors may generate more annotated sources in later rounds, so
+         * everything is accumulated and only written once, in the final round.
+         */
+        if (roundEnvironment.processingOver()) {
+            writeConfiguration(roundEnvironment);
+        }
+
+        /*
+         * Claim the annotations of this library, so they are not reported as
+         * unclaimed, but only when there are no others that other processors
+         * may be waiting for.
+         */
+        return !typeElements.isEmpty() && typeElements.stream().allMatch(this::isOwnAnnotation);
+    }
+
+    private boolean isOwnAnnotation(TypeElement annotation) {
+        return processingEnv.getElementUtils().getPackageOf(annotation).getQualifiedName()
+                .contentEquals(NativeImageProcessor.class.getPackageName());
+    }
+
+    private void collectElements(RoundEnvironment roundEnvironment) {
+        var started = System.nanoTime();
+        if (closure != null)
+            closure.reset();
+        index.index(roundEnvironment);
+        if (index.isEmpty()) {
+            stats.phase(ProcessorStats.DISCOVERY, started);
+            printMessage(roundEnvironment, "Nothing to process here.");
+            return;
+        }
+        var resourceEls = index.annotatedWith(Resource.class);
+        var reflectableEls = index.reflectable();
+        var otherReflectableEls = index.annotatedWith(OtherReflectable.class);
+        var otherReflectablesEls = index.annotatedWith(OtherReflectables.class);
+        var bundleEls = index.annotatedWith(Bundle.class);
+        var proxyEls = index.annotatedWith(Proxy.class);
+        var serialEls = index.serializable();
+        var otherSerialEls = index.annotatedWith(OtherSerializable.class);
+        var otherSerialsEls = index.annotatedWith(OtherSerializables.class);
+        var buildTimeEls = index.annotatedWith(InitializeAtBuildTime.class);
+        var runTimeEls = index.annotatedWith(InitializeAtRunTime.class);
+        var optionsEls = index.annotatedWith(NativeImageOptions.class);
+        var jniEls = index.annotatedWith(Jni.class);
+        var downcallEls = index.annotatedWith(Downcall.class);
+        var upcallEls = index.annotatedWith(Upcall.class);
+        var serviceEls = index.annotatedWith(ServiceProvider.class);
+        started = stats.phase(ProcessorStats.DISCOVERY, started);
+
+        printSummary("Round " + stats.rounds() + ": " + resourceEls.size() + " resource, " + reflectableEls.size()
+                + " reflectable, " + bundleEls.size() + " bundle, " + proxyEls.size() + " proxy, "
+                + serialEls.size() + " serialization, " + (otherReflectableEls.size() + otherReflectablesEls.size())
+                + " other reflectable and " + (otherSerialEls.size() + otherSerialsEls.size())
+                + " other serializable elements.");
 
         for (var element : proxyEls) {
-            addInterfaceToProxies(roundEnvironment, proxies, toClassName((TypeElement) element));
+            var proxy = element.getAnnotation(Proxy.class);
+            var interfaces = new ArrayList<TypeElement>();
+            interfaces.add((TypeElement) element);
+            interfaces.addAll(typeElements(proxy::with));
+            var condition = conditionOf(element, proxy::condition);
+            if (proxyGenerator != null) {
+                var generated = proxyGenerator.generate((TypeElement) element, interfaces);
+                if (generated != null) {
+                    addStaticProxyToReflection(roundEnvironment, state.get(originatingType(element), REFLECTION), generated, condition);
+                    continue;
+                }
+                processingEnv.getMessager().printMessage(Kind.WARNING, "[native-image-annotations] A static proxy cannot be "
+                        + "generated for these interfaces, a dynamic proxy will be used.", element);
+            }
+            var names = new ArrayList<String>();
+            for (var iface : interfaces) {
+                names.add(toClassName(iface));
+            }
+            addInterfaceToProxies(roundEnvironment, state.get(originatingType(element), PROXIES), names, condition);
         }
+        started = stats.phase(ProcessorStats.PROXIES, started);
 
         for (var element : serialEls) {
-            addNameToSerialization(roundEnvironment, serials, toClassName((TypeElement) element));
+            addNameToSerialization(roundEnvironment, state.get(originatingType(element), SERIALIZATION), toClassName((TypeElement) element),
+                    conditionOf(element, index.annotation(element, Serialization.class)::condition));
         }
+        started = stats.phase(ProcessorStats.SERIALIZATION, started);
 
         for (var element : bundleEls) {
-            addBundleToBundles(roundEnvironment, resourceBundles, (TypeElement) element);
+            addBundleToBundles(roundEnvironment, state.get(originatingType(element), BUNDLES), (TypeElement) element);
         }
         
         for (var element : resourceEls) {
+            var resourcesIncludes = state.get(originatingType(element), RESOURCES);
             var r = element.getAnnotation(Resource.class);
-            if (r.siblings()) {
-                resourcesIncludes.add(addPatternObject(roundEnvironment,
-                       element.getEnclosingElement().toString().replace(".", "/") + "/.*"));
-            }
-            var v = r.value();
-            if (v.length == 0) {
-                if (!r.siblings())
-                    resourcesIncludes.add(addPatternObject(roundEnvironment,
-                            toClassName((TypeElement) element).replace(".", "/") + ".*\\..*"));
-            } else {
-                for (var pattern : v) {
-                	if(pattern.startsWith("./")) {
-                		resourcesIncludes.add(addPatternObject(roundEnvironment, "\\Q" + toClassName((TypeElement) element).replace(".", "/") + "/" + pattern.substring(2) + "\\E"));
-                	}
-                	else {
-                		resourcesIncludes.add(addPatternObject(roundEnvironment, pattern));
-                	}
-                }
+            var condition = conditionOf(element, r::condition);
+            for (var pattern : ConfigEntries.resourcePatterns(toClassName((TypeElement) element),
+                    element.getEnclosingElement().toString(), List.of(r.value()), r.siblings())) {
+                resourcesIncludes.add(addPatternObject(roundEnvironment, pattern, condition));
             }
         }
+        started = stats.phase(ProcessorStats.RESOURCES, started);
         
+        for (var element : serviceEls) {
+            addServiceProvider(roundEnvironment, (TypeElement) element);
+        }
         for (var element : reflectableEls) {
             if (element.getKind() == ElementKind.CLASS || element.getKind() == ElementKind.INTERFACE)
-                addClassToReflection(roundEnvironment, reflection, (TypeElement) element);
+                addClassToReflection(roundEnvironment, state.get(originatingType(element), REFLECTION), (TypeElement) element);
         }
+        started = stats.phase(ProcessorStats.REFLECTION, started);
         
         for (var element : otherSerialsEls) {
             if (element.getKind() == ElementKind.CLASS || element.getKind() == ElementKind.INTERFACE || element.getKind() == ElementKind.ENUM) {
             	var otherNative = element.getAnnotation(OtherSerializables.class);
             	var el = element.getEnclosedElements().iterator();
             	for(var ref : otherNative.value()) {
-            		addOtherToSerialization(ref, roundEnvironment, serials, (TypeElement) el.next());
+            		addOtherToSerialization(ref, roundEnvironment, state.get(originatingType(element), SERIALIZATION), (TypeElement) el.next());
             	}
             }
         }
@@ -144,15 +523,16 @@ public class NativeImageProcessor extends AbstractProcessor {
         for (var element : otherSerialEls) {
             if (element.getKind() == ElementKind.CLASS || element.getKind() == ElementKind.INTERFACE || element.getKind() == ElementKind.ENUM) {
             	var otherNative = element.getAnnotation(OtherSerializable.class);
-        		addOtherToSerialization(otherNative, roundEnvironment, serials, (TypeElement) element);
+        		addOtherToSerialization(otherNative, roundEnvironment, state.get(originatingType(element), SERIALIZATION), (TypeElement) element);
             }
         }
+        started = stats.phase(ProcessorStats.SERIALIZATION, started);
         
         for (var element : otherReflectablesEls) {
             if (element.getKind() == ElementKind.CLASS || element.getKind() == ElementKind.INTERFACE) {
             	var otherNative = element.getAnnotation(OtherReflectables.class);
             	for(var ref : otherNative.value()) {
-            		addOtherToReflection(ref, roundEnvironment, reflection, (TypeElement) element);
+            		addOtherToReflection(ref, roundEnvironment, state.get(originatingType(element), REFLECTION), (TypeElement) element);
             	}
             }
         }
@@ -160,94 +540,730 @@ public class NativeImageProcessor extends AbstractProcessor {
         for (var element : otherReflectableEls) {
             if (element.getKind() == ElementKind.CLASS || element.getKind() == ElementKind.INTERFACE) {
             	var otherNative = element.getAnnotation(OtherReflectable.class);
-                addOtherToReflection(otherNative, roundEnvironment, reflection, (TypeElement) element);
+                addOtherToReflection(otherNative, roundEnvironment, state.get(originatingType(element), REFLECTION), (TypeElement) element);
             }
         }
 
-        var filer = processingEnv.getFiler();
-        if (reflection.size() > 0) {
-            var path = createRelativePath("reflect-config.json");
+        for (var element : jniEls) {
+            addJni(roundEnvironment, state.get(originatingType(element), JNI), element);
+        }
+        for (var element : downcallEls) {
+            addDowncall(roundEnvironment, state.get(originatingType(element), DOWNCALLS), element);
+        }
+        for (var element : upcallEls) {
+            addUpcall(roundEnvironment, state.get(originatingType(element), UPCALLS), element);
+        }
+        started = stats.phase(ProcessorStats.REFLECTION, started);
+
+        for (var element : buildTimeEls) {
+            addInitialization(roundEnvironment, state.get(originatingType(element), BUILD_TIME), element);
+        }
+        for (var element : runTimeEls) {
+            addInitialization(roundEnvironment, state.get(originatingType(element), RUN_TIME), element);
+        }
+        for (var element : optionsEls) {
+            addNativeImageOptions(roundEnvironment, state.get(originatingType(element), OPTIONS), element);
+        }
+        stats.phase(ProcessorStats.INITIALIZATION, started);
+    }
+
+    private void writeConfiguration(RoundEnvironment roundEnvironment) {
+        var started = System.nanoTime();
+        try {
+            writeConfigurationFiles(roundEnvironment);
+        } finally {
+            stats.phase(ProcessorStats.WRITE, started);
+        }
+
+        stats.types(state.size());
+        if (stats.entries() > 0) {
+            printSummary("Wrote " + stats.entries() + " entries (" + stats.bytes() + " bytes) for " + state.size()
+                    + " types in " + stats.millis() + " ms.");
+        }
+        if (writeStats) {
+            var path = createBuildPath(ProcessorStats.STATS_FILE);
             try {
-                var classFile = filer.createResource(StandardLocation.CLASS_OUTPUT, "", path);
-                printMessage(roundEnvironment, "Writing to: " + StandardLocation.CLASS_OUTPUT + "/" + path);
-                try (var w = new PrintWriter(classFile.openOutputStream())) {
-                    w.println(gson.toJson(reflection));
+                var classFile = processingEnv.getFiler().createResource(BUILD_LOCATION, "", path);
+                try (var w = new BufferedWriter(new OutputStreamWriter(classFile.openOutputStream(), StandardCharsets.UTF_8))) {
+                    stats.write(w);
                 }
             } catch (IOException e) {
                 throw new IllegalStateException("Could not write.", e);
             }
-            args.add("-H:ReflectionConfigurationResources=${.}/reflect-config.json");
         }
+    }
 
-        if (proxies.size() > 0) {
-            var path = createRelativePath("proxy-config.json");
+    private void writeConfigurationFiles(RoundEnvironment roundEnvironment) {
+        var filer = processingEnv.getFiler();
+        if (incremental) {
             try {
-                var classFile = filer.createResource(StandardLocation.CLASS_OUTPUT, "", path);
-                printMessage(roundEnvironment, "Writing to: " + StandardLocation.CLASS_OUTPUT + "/" + path);
-                try (var w = new PrintWriter(classFile.openOutputStream())) {
-                    w.println(gson.toJson(proxies));
-                }
+                state.save(filer, BUILD_LOCATION, createBuildPath(MetadataState.STATE_FILE));
             } catch (IOException e) {
-                throw new IllegalStateException("Could not write.", e);
+                throw new IllegalStateException("Could not write state.", e);
             }
-            args.add("-H:DynamicProxyConfigurationResources=${.}/proxy-config.json");
         }
 
-        if (serials.size() > 0) {
-            var path = createRelativePath("serialization-config.json");
+        /* Unless everything there was has gone, and what was written must be emptied */
+        if (state.size() == 0 && !derived) {
+            return;
+        }
+        manifest.clear();
+
+        var cliOptions = "true".equals(processingEnv.getOptions().get(CLI_OPTIONS_OPTION));
+        var args = new ArrayList<String>();
+
+        /*
+         * Untouched types keep the entries derived when they were last compiled.
+         * The same class may be reached from several places, so reflection
+         * entries are merged into one per class, and exact duplicates of any
+         * other entry dropped.
+         */
+        var reflection = new ReflectionIndex();
+        reflection.addAll(state.entries(REFLECTION));
+        var jni = new ReflectionIndex();
+        jni.addAll(state.entries(JNI));
+        var proxies = distinct(PROXIES);
+        var serials = distinct(SERIALIZATION);
+        var resources = distinct(RESOURCES);
+        if (enumerator != null)
+            resources = sorted(enumerator.enumerate(resources));
+        /* Written by this processor, so not there to be enumerated */
+        var services = services();
+        for (var service : services.keySet()) {
+            resources.add(addPatternObject(roundEnvironment, "\\Q" + SERVICES_PATH + service + "\\E", null));
+        }
+        var bundles = distinct(BUNDLES);
+        var downcalls = distinct(DOWNCALLS);
+        var upcalls = distinct(UPCALLS);
+
+        var merge = processingEnv.getOptions().get(MERGE_OPTION);
+        ConfigMerger merged = null;
+        if (unified) {
+            if (merge != null)
+                processingEnv.getMessager().printMessage(Kind.WARNING, "[native-image-annotations] "
+                        + MERGE_OPTION + " is not supported with the unified format, and will be ignored.");
+            writeUnified(roundEnvironment, reflection, jni, proxies, serials, resources, bundles, downcalls, upcalls);
+        } else if (merge != null) {
+            merged = writeMerged(roundEnvironment, args, merge, reflection, jni, proxies, serials, resources, bundles);
+            writeForeign(roundEnvironment, args, downcalls, upcalls);
+        } else {
+            writeLegacy(roundEnvironment, args, reflection, jni, proxies, serials, resources, bundles, downcalls, upcalls);
+        }
+        
+        /*
+         * Initialization policy and build options can only be given as arguments,
+         * so are written whether or not the configuration files are also to be added.
+         */
+        if (!cliOptions)
+            args.clear();
+        var buildTime = new TreeSet<String>();
+        state.entries(BUILD_TIME).forEach(e -> buildTime.add(e.getAsString()));
+        writeServices(roundEnvironment, services);
+
+        if (resourceIndex != null && writeResourceIndex(roundEnvironment))
+            buildTime.add(resourceIndex.className());
+        var runTime = new TreeSet<String>();
+        state.entries(RUN_TIME).forEach(e -> runTime.add(e.getAsString()));
+        args.addAll(new ClassInitialization(processingEnv.getMessager()).args(buildTime, runTime));
+        args.addAll(nativeImageOptions());
+
+        /* Written without any arguments, rather than left as it was, once there are none */
+        if (args.size() > 0 || exists("native-image.properties")) {
+            var props = new Properties();
             try {
-                var classFile = filer.createResource(StandardLocation.CLASS_OUTPUT, "", path);
-                printMessage(roundEnvironment, "Writing to: " + StandardLocation.CLASS_OUTPUT + "/" + path);
-                try (var w = new PrintWriter(classFile.openOutputStream())) {
-                    w.println(gson.toJson(serials));
-                }
+                if (args.size() > 0)
+                    props.put("Args", String.join(" ", args));
+                var out = new ByteArrayOutputStream();
+                props.store(out, null);
+                /* Without the timestamp that Properties always starts with, so the content is stable */
+                var stored = new String(out.toByteArray(), StandardCharsets.ISO_8859_1);
+                var content = ("#Generated by native-image-annotations" + stored.substring(stored.indexOf(System.lineSeparator())))
+                        .getBytes(StandardCharsets.ISO_8859_1);
+                writeIfChanged(roundEnvironment, "native-image.properties", content);
+                stats.file("native-image.properties", args.size(), content.length);
             } catch (IOException e) {
                 throw new IllegalStateException("Could not write.", e);
             }
+        }
+
+        if (footprint != null || budget != null || typeBudget != null)
+            footprint(roundEnvironment);
+
+        if (baseline != null) {
+            if (merged == null) {
+                merged = new ConfigMerger();
+                reflection.entries().forEach(merged.reflection()::add);
+                jni.entries().forEach(merged.jni()::add);
+                merged.proxies().addAll(proxies);
+                merged.serialization().addAll(serials);
+                merged.includes().addAll(resources);
+                merged.bundles().addAll(bundles);
+            }
+            compareWithBaseline(roundEnvironment, merged);
+        }
+
+        if (!manifest.isEmpty())
+            writeBuildJson(roundEnvironment, OutputManifest.MANIFEST_FILE, manifest::write);
+    }
+
+    private void writeLegacy(RoundEnvironment roundEnvironment, List<String> args, ReflectionIndex reflection,
+            ReflectionIndex jni, Set<JsonElement> proxies, Set<JsonElement> serials, Set<JsonElement> resources, Set<JsonElement> bundles,
+            Set<JsonElement> downcalls, Set<JsonElement> upcalls) {
+        if (reflection.size() > 0 || exists("reflect-config.json")) {
+            writeJson(roundEnvironment, "reflect-config.json", reflection.size(), w -> writeArray(w, reflection.entries()));
+            args.add("-H:ReflectionConfigurationResources=${.}/reflect-config.json");
+        }
+
+        if (jni.size() > 0 || exists("jni-config.json")) {
+            writeJson(roundEnvironment, "jni-config.json", jni.size(), w -> writeArray(w, jni.entries()));
+            args.add("-H:JNIConfigurationResources=${.}/jni-config.json");
+        }
+
+        if (proxies.size() > 0 || exists("proxy-config.json")) {
+            writeJson(roundEnvironment, "proxy-config.json", proxies.size(), w -> writeArray(w, proxies));
+            args.add("-H:DynamicProxyConfigurationResources=${.}/proxy-config.json");
+        }
+
+        if (serials.size() > 0 || exists("serialization-config.json")) {
+            writeJson(roundEnvironment, "serialization-config.json", serials.size(), w -> writeArray(w, serials));
             args.add("-H:SerializationConfigurationResources=${.}/serialization-config.json");
         }
 
-        if (resources.size() > 0 || resourceBundles.size() > 0) {
-            var path = createRelativePath("resource-config.json");
+        writeForeign(roundEnvironment, args, downcalls, upcalls);
+
+        writeJson(roundEnvironment, "resource-config.json", resources.size() + bundles.size(), w -> {
+            w.beginObject();
+            w.name("resources");
+            w.beginObject();
+            w.name("includes");
+            writeArray(w, resources);
+            w.endObject();
+            w.name("bundles");
+            writeArray(w, bundles);
+            w.endObject();
+        });
+        args.add("-H:ResourceConfigurationResources=${.}/resource-config.json");
+    }
+
+    private Map<String, List<String>> services() {
+        var services = new TreeMap<String, List<String>>();
+        for (var entry : distinct(SERVICES)) {
+            var object = entry.getAsJsonObject();
+            services.computeIfAbsent(object.get("service").getAsString(), k -> new ArrayList<>())
+                    .add(object.get("provider").getAsString());
+        }
+        return services;
+    }
+
+    private void writeServices(RoundEnvironment roundEnvironment, Map<String, List<String>> services) {
+        /* Compared before writing, as the Filer cannot read back what it has written */
+        var unchanged = registered == null || registered.equals(registeredProviders(services));
+        /* Service files written before that have no providers now keep only what was hand written */
+        var files = new TreeMap<String, List<String>>();
+        for (var service : services.entrySet())
+            files.put(SERVICES_PATH + service.getKey(), service.getValue());
+        for (var file : written) {
+            if (file.startsWith(SERVICES_PATH))
+                files.putIfAbsent(file, List.of());
+        }
+        for (var service : files.entrySet()) {
+            var path = service.getKey();
+            var content = new StringBuilder();
+            var listed = new TreeSet<String>();
+            for (var line : handWritten(path)) {
+                content.append(line).append('\n');
+                var provider = line.replaceFirst("#.*", "").trim();
+                if (!provider.isEmpty())
+                    listed.add(provider);
+            }
+            content.append(SERVICES_MARKER).append('\n');
+            for (var provider : service.getValue()) {
+                if (listed.add(provider))
+                    content.append(provider).append('\n');
+            }
             try {
-                var classFile = filer.createResource(StandardLocation.CLASS_OUTPUT, "", path);
-                printMessage(roundEnvironment, "Writing to: " + StandardLocation.CLASS_OUTPUT + "/" + path);
-                try (var w = new PrintWriter(classFile.openOutputStream())) {
-                    w.println(gson.toJson(resourcesRoot));
-                }
+                var bytes = content.toString().getBytes(StandardCharsets.UTF_8);
+                writeIfChanged(roundEnvironment, path, StandardLocation.CLASS_OUTPUT, path, bytes);
+                stats.file(path, service.getValue().size(), bytes.length);
             } catch (IOException e) {
                 throw new IllegalStateException("Could not write.", e);
             }
-            args.add("-H:ResourceConfigurationResources=${.}/resource-config.json");
         }
-        
-        if(cliOptions && args.size() > 0) {
-            var path = createRelativePath("native-image.properties");
-            var props = new Properties();
-            try {
-                var classFile = filer.createResource(StandardLocation.CLASS_OUTPUT, "", path);
-                printMessage(roundEnvironment, "Writing to: " + StandardLocation.CLASS_OUTPUT + "/" + path);
-                try (var w = new PrintWriter(classFile.openOutputStream())) {
-                    props.put("Args", String.join(" ", args));
-                    props.store(w, "Generated by native-image-annotations");
+
+        if (!unchanged)
+            processingEnv.getMessager().printMessage(Kind.WARNING, "[native-image-annotations] Service providers were added "
+                    + "by other processors after " + serviceRegistry.className() + " was generated, and are not in it.");
+    }
+
+    private void generateServiceRegistry() {
+        registered = registeredProviders(services());
+        if (registered.isEmpty())
+            return;
+        try {
+            serviceRegistry.generate(registered);
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Kind.ERROR, "[native-image-annotations] Could not generate "
+                    + serviceRegistry.className() + ". " + e.getMessage());
+        }
+    }
+
+    private Map<String, List<String>> registeredProviders(Map<String, List<String>> services) {
+        /* In the order ServiceLoader would find them, those listed by hand first */
+        var registered = new TreeMap<String, List<String>>();
+        for (var service : services.entrySet()) {
+            var providers = new ArrayList<String>();
+            var listed = new TreeSet<String>();
+            for (var line : handWritten(SERVICES_PATH + service.getKey())) {
+                var provider = line.replaceFirst("#.*", "").trim();
+                if (provider.isEmpty() || !listed.add(provider))
+                    continue;
+                if (processingEnv.getElementUtils().getTypeElement(provider.replace('$', '.')) == null) {
+                    processingEnv.getMessager().printMessage(Kind.WARNING, "[native-image-annotations] " + provider
+                            + " is listed as a provider of " + service.getKey() + " but cannot be found, so is not in "
+                            + serviceRegistry.className() + ".");
+                    continue;
                 }
+                providers.add(provider);
+            }
+            for (var provider : service.getValue()) {
+                if (listed.add(provider))
+                    providers.add(provider);
+            }
+            registered.put(service.getKey(), providers);
+        }
+        return registered;
+    }
+
+    private List<String> handWritten(String path) {
+        var lines = new ArrayList<String>();
+        try {
+            var resource = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", path);
+            for (var line : resource.getCharContent(true).toString().split("\\r?\\n")) {
+                if (line.equals(SERVICES_MARKER))
+                    break;
+                lines.add(line);
+            }
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            /* No existing file */
+        }
+        return lines;
+    }
+
+    private boolean writeResourceIndex(RoundEnvironment roundEnvironment) {
+        /*
+         * The files matched by the patterns as given, as those written may be
+         * globs. A pattern that matches nothing is reported when enumerating.
+         */
+        var files = new TreeMap<String, Path>();
+        for (var entry : distinct(RESOURCES)) {
+            var pattern = entry.getAsJsonObject().get("pattern");
+            if (pattern != null) {
+                for (var name : enumerator.matching(pattern.getAsString()).keySet())
+                    files.put(name, enumerator.path(name));
+            }
+        }
+        try {
+            var content = ResourceIndexGenerator.index(files);
+            writeIfChanged(roundEnvironment, ResourceIndexGenerator.INDEX_FILE, content);
+            stats.file(ResourceIndexGenerator.INDEX_FILE, files.size(), content.length);
+            printSummary("Indexed " + files.size() + " resources for " + resourceIndex.className() + ".");
+            return true;
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Kind.ERROR, "[native-image-annotations] Could not write the resource index. "
+                    + e.getMessage());
+            return false;
+        }
+    }
+
+    private void footprint(RoundEnvironment roundEnvironment) {
+        var report = new FootprintReport(this, processingEnv.getElementUtils(), enumerator);
+        for (var type : state.types()) {
+            state.get(type, REFLECTION).forEach(e -> report.addReflection(type, unified ? UNIFIED_FILE : ConfigMerger.REFLECT, e.getAsJsonObject()));
+            state.get(type, JNI).forEach(e -> report.addReflection(type, unified ? UNIFIED_FILE : ConfigMerger.JNI, e.getAsJsonObject()));
+            state.get(type, PROXIES).forEach(e -> report.addProxy(type, unified ? UNIFIED_FILE : ConfigMerger.PROXY, e.getAsJsonObject()));
+            state.get(type, SERIALIZATION).forEach(e -> report.addSerialization(type, unified ? UNIFIED_FILE : ConfigMerger.SERIALIZATION, e.getAsJsonObject()));
+            state.get(type, RESOURCES).forEach(e -> report.addResource(type, unified ? UNIFIED_FILE : ConfigMerger.RESOURCE, e.getAsJsonObject()));
+            state.get(type, BUNDLES).forEach(e -> report.addBundle(type, unified ? UNIFIED_FILE : ConfigMerger.RESOURCE, e.getAsJsonObject()));
+        }
+
+        if ("csv".equals(footprint)) {
+            try {
+                var out = new StringWriter();
+                report.writeCsv(out);
+                writeIfChanged(roundEnvironment, FootprintReport.CSV_FILE, BUILD_LOCATION, createBuildPath(FootprintReport.CSV_FILE),
+                        out.toString().getBytes(StandardCharsets.UTF_8));
             } catch (IOException e) {
                 throw new IllegalStateException("Could not write.", e);
             }
+        } else if (footprint != null) {
+            writeBuildJson(roundEnvironment, FootprintReport.JSON_FILE, report::write);
+        }
+
+        /*
+         * Checked against the budgets after the report is written, so that it
+         * can be used to find what is over.
+         */
+        if (typeBudget != null) {
+            for (var row : report.types().entrySet()) {
+                var over = overBudget(row.getValue(), typeBudget);
+                if (!over.isEmpty()) {
+                    var element = processingEnv.getElementUtils().getTypeElement(row.getKey().replace('$', '.'));
+                    processingEnv.getMessager().printMessage(budgetKind, "[native-image-annotations] " + row.getKey()
+                            + " exposes " + String.join(", ", over) + " (" + BUDGET_TYPE_OPTION + ").", element);
+                }
+            }
+        }
+        if (budget != null) {
+            var over = overBudget(report.total(), budget);
+            if (!over.isEmpty())
+                processingEnv.getMessager().printMessage(budgetKind, "[native-image-annotations] The generated configuration exposes "
+                        + String.join(", ", over) + " (" + BUDGET_OPTION + ").");
+        }
+    }
+
+    private static List<String> overBudget(FootprintReport.Row row, Map<FootprintReport.Metric, Long> budget) {
+        var over = new ArrayList<String>();
+        for (var limit : budget.entrySet()) {
+            var value = row.get(limit.getKey());
+            if (value > limit.getValue())
+                over.add(value + " " + limit.getKey().key() + ", more than the budget of " + limit.getValue());
+        }
+        return over;
+    }
+
+    private void writeForeign(RoundEnvironment roundEnvironment, List<String> args, Set<JsonElement> downcalls, Set<JsonElement> upcalls) {
+        if (downcalls.size() + upcalls.size() > 0 || exists("foreign-config.json")) {
+            writeJson(roundEnvironment, "foreign-config.json", downcalls.size() + upcalls.size(), w -> writeForeign(w, downcalls, upcalls));
+            args.add("-H:ForeignConfigurationResources=${.}/foreign-config.json");
+        }
+    }
+
+    private void compareWithBaseline(RoundEnvironment roundEnvironment, ConfigMerger current) {
+        /*
+         * A baseline that does not exist yet, such as before the first release, is
+         * not an error, there is just nothing to compare with.
+         */
+        var path = Paths.get(baseline);
+        if (!Files.exists(path)) {
+            printSummary("No baseline at " + baseline + ".");
+            return;
+        }
+        var previous = new ConfigMerger();
+        try {
+            previous.read(path);
+        } catch (IOException | RuntimeException e) {
+            processingEnv.getMessager().printMessage(Kind.WARNING, "[native-image-annotations] Could not read baseline "
+                    + baseline + ". " + e.getMessage());
+            return;
+        }
+        var diff = ConfigDiff.compare(previous, current);
+        writeBuildJson(roundEnvironment, DIFF_FILE, diff::write);
+        printSummary("Compared with baseline. " + diff.summary());
+        if (baselineMax != null) {
+            var exceeded = diff.exceeded(baselineMax);
+            if (!exceeded.isEmpty())
+                processingEnv.getMessager().printMessage(Kind.ERROR, "[native-image-annotations] Since the baseline, added "
+                        + String.join(", ", exceeded) + " (" + BASELINE_MAX_OPTION + "). See " + DIFF_FILE + ".");
+        }
+    }
+
+    private ConfigMerger writeMerged(RoundEnvironment roundEnvironment, List<String> args, String merge, ReflectionIndex reflection,
+            ReflectionIndex jni, Set<JsonElement> proxies, Set<JsonElement> serials, Set<JsonElement> resources,
+            Set<JsonElement> bundles) {
+        /*
+         * Configuration from elsewhere (the tracing agent, dependencies and so on)
+         * is combined with what was derived here into one set of files.
+         */
+        var merger = new ConfigMerger();
+        for (var input : merge.split("[,\\" + File.pathSeparator + "]")) {
+            if (input.isBlank())
+                continue;
+            try {
+                merger.read(Paths.get(input.trim()));
+            } catch (IOException | RuntimeException e) {
+                processingEnv.getMessager().printMessage(Kind.WARNING, "[native-image-annotations] Could not merge "
+                        + input.trim() + ". " + e.getMessage());
+            }
+        }
+        reflection.entries().forEach(merger.reflection()::add);
+        jni.entries().forEach(merger.jni()::add);
+        merger.proxies().addAll(proxies);
+        merger.serialization().addAll(serials);
+        merger.includes().addAll(resources);
+        merger.bundles().addAll(bundles);
+        try {
+            for (var fileName : merger.write((fileName, entries, emitter) -> writeJson(roundEnvironment, fileName, entries, emitter))) {
+                args.add("-H:" + configurationOption(fileName) + "=${.}/" + fileName);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write.", e);
+        }
+        return merger;
+    }
+
+    private static String configurationOption(String fileName) {
+        switch (fileName) {
+        case ConfigMerger.REFLECT:
+            return "ReflectionConfigurationResources";
+        case ConfigMerger.JNI:
+            return "JNIConfigurationResources";
+        case ConfigMerger.PROXY:
+            return "DynamicProxyConfigurationResources";
+        case ConfigMerger.SERIALIZATION:
+            return "SerializationConfigurationResources";
+        default:
+            return "ResourceConfigurationResources";
+        }
+    }
+
+    private void writeUnified(RoundEnvironment roundEnvironment, ReflectionIndex reflection, ReflectionIndex jni,
+            Set<JsonElement> proxies, Set<JsonElement> serials, Set<JsonElement> resources, Set<JsonElement> bundles,
+            Set<JsonElement> downcalls, Set<JsonElement> upcalls) {
+        /*
+         * The single file format used by newer GraalVM releases, picked up
+         * automatically from META-INF/native-image. Proxies become reflection
+         * entries and resources must be globs.
+         */
+        var reflectionEntries = new ArrayList<JsonObject>();
+        for (var entry : reflection.entries()) {
+            reflectionEntries.add(toUnified(entry, "name", "type"));
+        }
+        for (var entry : proxies) {
+            var proxy = new JsonObject();
+            proxy.add("proxy", entry.getAsJsonObject().get("interfaces"));
+            var unifiedEntry = toUnified(entry.getAsJsonObject(), "interfaces", null);
+            unifiedEntry.add("type", proxy);
+            reflectionEntries.add(unifiedEntry);
+        }
+        var jniEntries = new ArrayList<JsonObject>();
+        for (var entry : jni.entries()) {
+            jniEntries.add(toUnified(entry, "name", "type"));
+        }
+        var serialEntries = new ArrayList<JsonObject>();
+        for (var entry : serials) {
+            serialEntries.add(toUnified(entry.getAsJsonObject(), "name", "type"));
+        }
+        var resourceEntries = new ArrayList<JsonObject>();
+        for (var entry : resources) {
+            if (entry.getAsJsonObject().has("glob")) {
+                resourceEntries.add(toUnified(entry.getAsJsonObject(), "glob", "glob"));
+                continue;
+            }
+            var pattern = entry.getAsJsonObject().get("pattern").getAsString();
+            var glob = ResourcePatterns.toGlob(pattern);
+            if (glob == null) {
+                processingEnv.getMessager().printMessage(Kind.WARNING, "[native-image-annotations] Resource pattern '"
+                        + pattern + "' cannot be expressed as a glob, and will be left out of the unified metadata.");
+            } else {
+                var unifiedEntry = toUnified(entry.getAsJsonObject(), "pattern", null);
+                unifiedEntry.addProperty("glob", glob);
+                resourceEntries.add(unifiedEntry);
+            }
+        }
+        var bundleEntries = new ArrayList<JsonObject>();
+        for (var entry : bundles) {
+            var unifiedEntry = toUnified(entry.getAsJsonObject(), "name", "name");
+            unifiedEntry.remove("locales");
+            bundleEntries.add(unifiedEntry);
+        }
+
+        var entries = reflectionEntries.size() + jniEntries.size() + serialEntries.size() + resourceEntries.size() + bundleEntries.size()
+                + downcalls.size() + upcalls.size();
+        writeJson(roundEnvironment, UNIFIED_FILE, entries, w -> {
+            w.beginObject();
+            if (!reflectionEntries.isEmpty()) {
+                w.name("reflection");
+                writeArray(w, reflectionEntries);
+            }
+            if (!jniEntries.isEmpty()) {
+                w.name("jni");
+                writeArray(w, jniEntries);
+            }
+            if (!serialEntries.isEmpty()) {
+                w.name("serialization");
+                writeArray(w, serialEntries);
+            }
+            if (!resourceEntries.isEmpty()) {
+                w.name("resources");
+                writeArray(w, resourceEntries);
+            }
+            if (!bundleEntries.isEmpty()) {
+                w.name("bundles");
+                writeArray(w, bundleEntries);
+            }
+            if (downcalls.size() + upcalls.size() > 0) {
+                w.name("foreign");
+                writeForeign(w, downcalls, upcalls);
+            }
+            w.endObject();
+        });
+    }
+
+    private void writeForeign(JsonWriter w, Set<JsonElement> downcalls, Set<JsonElement> upcalls) throws IOException {
+        w.beginObject();
+        if (!downcalls.isEmpty()) {
+            w.name("downcalls");
+            writeArray(w, downcalls);
+        }
+        if (!upcalls.isEmpty()) {
+            w.name("upcalls");
+            writeArray(w, upcalls);
+        }
+        w.endObject();
+    }
+
+    private static JsonObject toUnified(JsonObject entry, String nameKey, String unifiedNameKey) {
+        var unifiedEntry = new JsonObject();
+        var condition = entry.getAsJsonObject("condition");
+        if (condition != null) {
+            var reached = new JsonObject();
+            reached.add("typeReached", condition.get("typeReachable"));
+            unifiedEntry.add("condition", reached);
+        }
+        if (unifiedNameKey != null)
+            unifiedEntry.add(unifiedNameKey, entry.get(nameKey));
+        for (var property : entry.entrySet()) {
+            /* Everything registered may be queried, so there are no queryAll flags */
+            if (!property.getKey().equals(nameKey) && !property.getKey().equals("condition")
+                    && !property.getKey().startsWith("queryAll"))
+                unifiedEntry.add(property.getKey(), property.getValue());
+        }
+        return unifiedEntry;
+    }
+
+    private Set<JsonElement> distinct(String section) {
+        /* Sorted, so the output does not depend on the order types were compiled in */
+        var entries = new TreeSet<JsonElement>(Comparator.comparing(JsonElement::toString));
+        state.entries(section).forEach(entries::add);
+        return entries;
+    }
+
+    private static Set<JsonElement> sorted(Set<JsonElement> entries) {
+        var sorted = new TreeSet<JsonElement>(Comparator.comparing(JsonElement::toString));
+        sorted.addAll(entries);
+        return sorted;
+    }
+
+    private void writeArray(JsonWriter writer, Iterable<? extends JsonElement> entries) throws IOException {
+        writer.beginArray();
+        for (var entry : entries) {
+            gson.toJson(entry, writer);
+        }
+        writer.endArray();
+    }
+
+    private void writeJson(RoundEnvironment roundEnvironment, String fileName, int entries, JsonEmitter emitter) {
+        writeJson(roundEnvironment, fileName, StandardLocation.CLASS_OUTPUT, createRelativePath(fileName), entries, emitter);
+    }
+
+    private void writeBuildJson(RoundEnvironment roundEnvironment, String fileName, JsonEmitter emitter) {
+        writeJson(roundEnvironment, fileName, BUILD_LOCATION, createBuildPath(fileName), 0, emitter);
+    }
+
+    private void writeJson(RoundEnvironment roundEnvironment, String fileName, Location location, String path, int entries,
+            JsonEmitter emitter) {
+        try {
+            /*
+             * Emit once to a digest only, and again to the file if it has
+             * changed, so that the content is never held in memory
+             */
+            var digest = OutputManifest.digest();
+            var size = new long[1];
+            emit(new DigestOutputStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    size[0]++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    size[0] += len;
+                }
+            }, digest), emitter);
+            if (changed(roundEnvironment, fileName, location, path, OutputManifest.hex(digest.digest()))) {
+                try (var out = processingEnv.getFiler().createResource(location, "", path).openOutputStream()) {
+                    emit(out, emitter);
+                }
+            }
+            stats.file(fileName, entries, size[0]);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not write.", e);
+        }
+    }
+
+    private void emit(OutputStream stream, JsonEmitter emitter) throws IOException {
+        try (var out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8))) {
+            var w = new JsonWriter(out);
+            if (!compact)
+                w.setIndent("  ");
+            emitter.emit(w);
+            w.flush();
+            out.newLine();
+        }
+    }
+
+    private void writeIfChanged(RoundEnvironment roundEnvironment, String fileName, byte[] content) throws IOException {
+        writeIfChanged(roundEnvironment, fileName, StandardLocation.CLASS_OUTPUT, createRelativePath(fileName), content);
+    }
+
+    private void writeIfChanged(RoundEnvironment roundEnvironment, String fileName, Location location, String path, byte[] content)
+            throws IOException {
+        if (changed(roundEnvironment, fileName, location, path, OutputManifest.hash(content))) {
+            try (var out = processingEnv.getFiler().createResource(location, "", path).openOutputStream()) {
+                out.write(content);
+            }
         }
+    }
 
+    /**
+     * Record the hash of a file, and whether it differs from that of the file
+     * already there, so it needs to be written.
+     */
+    private boolean changed(RoundEnvironment roundEnvironment, String fileName, Location location, String path, String hash) {
+        if (!fileName.equals(OutputManifest.MANIFEST_FILE))
+            manifest.add(fileName, hash);
+        if (hash.equals(existingHash(location, path))) {
+            printMessage(roundEnvironment, "Unchanged: " + location + "/" + path);
+            return false;
+        }
+        printMessage(roundEnvironment, "Writing to: " + location + "/" + path);
         return true;
     }
 
+    /**
+     * Whether a configuration file was written by an earlier compilation, so
+     * must be written again, even if empty, rather than left with entries for
+     * types that no longer have them.
+     */
+    private boolean exists(String fileName) {
+        return existingHash(StandardLocation.CLASS_OUTPUT, createRelativePath(fileName)) != null;
+    }
+
+    private String existingHash(Location location, String path) {
+        try {
+            var resource = processingEnv.getFiler().getResource(location, "", path);
+            try (var in = resource.openInputStream()) {
+                return OutputManifest.hash(in);
+            }
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            /* Not written before */
+            return null;
+        }
+    }
+
     protected void printMessage(RoundEnvironment roundEnvironment, String message) {
-        System.out.println("[native-image-annotations] " + message);
+        if (verbosity == Verbosity.DEBUG)
+            processingEnv.getMessager().printMessage(Kind.NOTE, "[native-image-annotations] " + message);
     }
 
-    private JsonObject addPatternObject(RoundEnvironment roundEnvironment, String pattern) {
+    protected void printSummary(String message) {
+        if (verbosity != Verbosity.OFF)
+            processingEnv.getMessager().printMessage(Kind.NOTE, "[native-image-annotations] " + message);
+    }
+
+    private JsonObject addPatternObject(RoundEnvironment roundEnvironment, String pattern, String condition) {
         printMessage(roundEnvironment, "    Adding pattern " + pattern);
-        var o = new JsonObject();
-        o.addProperty("pattern", pattern);
-        return o;
+        return ConfigEntries.pattern(pattern, condition);
     }
 
     protected String createRelativePath(String fileName) {
@@ -265,34 +1281,322 @@ public class NativeImageProcessor extends AbstractProcessor {
         return relativeName + fileName;
     }
 
-    void addInterfaceToProxies(RoundEnvironment roundEnvironment, JsonArray array, String clazz) {
-        printMessage(roundEnvironment, "    Adding interface " + clazz);
-        var object = new JsonObject();
-        var ifArray = new JsonArray();
-        ifArray.add(clazz);
-        object.add("interfaces", ifArray);
+    protected String createBuildPath(String fileName) {
+        var id = processingEnv.getOptions().getOrDefault(PROJECT_OPTION, "native-image-annotations");
+        return BUILD_PATH + "/" + (id.isEmpty() ? "" : id.replace('\\', '/') + "/") + fileName;
+    }
+
+    void addInterfaceToProxies(RoundEnvironment roundEnvironment, JsonArray array, List<String> interfaces, String condition) {
+        printMessage(roundEnvironment, "    Adding interfaces " + interfaces);
+        array.add(ConfigEntries.proxy(interfaces, condition));
+    }
+
+    void addStaticProxyToReflection(RoundEnvironment roundEnvironment, JsonArray array, String clazz, String condition) {
+        printMessage(roundEnvironment, "    Adding static proxy " + clazz);
+        var object = ConfigEntries.named(clazz, condition);
+        ConfigEntries.addMethod(object, "<init>", List.of(clazz + "$Handler"));
         array.add(object);
     }
 
-    void addNameToSerialization(RoundEnvironment roundEnvironment, JsonArray array, String clazz) {
+    List<TypeElement> typeElements(Supplier<Class<?>[]> attribute) {
+        var elements = new ArrayList<TypeElement>();
+        try {
+            for (var clazz : attribute.get()) {
+                elements.add(processingEnv.getElementUtils().getTypeElement(clazz.getCanonicalName()));
+            }
+        } catch (MirroredTypesException mte) {
+            for (var mirror : mte.getTypeMirrors()) {
+                if (mirror instanceof DeclaredType)
+                    elements.add((TypeElement) ((DeclaredType) mirror).asElement());
+            }
+        }
+        return elements;
+    }
+
+    void addNameToSerialization(RoundEnvironment roundEnvironment, JsonArray array, String clazz, String condition) {
         printMessage(roundEnvironment, "    Adding name " + clazz);
-        var object = new JsonObject();
-        object.addProperty("name", clazz.toString());
+        array.add(ConfigEntries.named(clazz, condition));
+    }
+
+    void addServiceProvider(RoundEnvironment roundEnvironment, TypeElement element) {
+        var serviceProvider = element.getAnnotation(ServiceProvider.class);
+        var provider = toClassName(element);
+        var messager = processingEnv.getMessager();
+        if (!element.getModifiers().contains(Modifier.PUBLIC) || (element.getNestingKind() != NestingKind.TOP_LEVEL
+                && !element.getModifiers().contains(Modifier.STATIC))) {
+            messager.printMessage(Kind.ERROR, "[native-image-annotations] A service provider must be a public top level "
+                    + "or static nested class.", element);
+            return;
+        }
+
+        /*
+         * Providers listed in META-INF/services are created with their no argument
+         * constructor. A static provider() method is only used for those in
+         * modules, which are declared in module-info instead.
+         */
+        var constructor = false;
+        for (var exec : ElementFilter.constructorsIn(element.getEnclosedElements())) {
+            if (exec.getParameters().isEmpty() && exec.getModifiers().contains(Modifier.PUBLIC))
+                constructor = true;
+        }
+        if (!constructor || element.getModifiers().contains(Modifier.ABSTRACT)) {
+            messager.printMessage(Kind.ERROR, "[native-image-annotations] A service provider must be a concrete class with "
+                    + "a public no argument constructor.", element);
+            return;
+        }
+
+        var types = processingEnv.getTypeUtils();
+        var condition = conditionOf(element, serviceProvider::condition);
+        var provides = false;
+        for (var service : typeElements(serviceProvider::value)) {
+            if (!types.isAssignable(types.erasure(element.asType()), types.erasure(service.asType()))) {
+                messager.printMessage(Kind.ERROR, "[native-image-annotations] " + provider + " does not provide "
+                        + service.getQualifiedName() + ".", element);
+                continue;
+            }
+            printMessage(roundEnvironment, "    Adding service provider " + provider + " for " + toClassName(service));
+            var object = new JsonObject();
+            object.addProperty("service", toClassName(service));
+            object.addProperty("provider", provider);
+            state.get(originatingType(element), SERVICES).add(object);
+            provides = true;
+        }
+        if (!provides)
+            return;
+
+        /* Only what ServiceLoader calls needs to be reflectable */
+        var classObject = new JsonObject();
+        classObject.addProperty("name", provider);
+        addCondition(classObject, condition);
+        var methods = new JsonArray();
+        var method = new JsonObject();
+        method.addProperty("name", "<init>");
+        /* Without any, every constructor would be registered */
+        method.add("parameterTypes", new JsonArray());
+        methods.add(method);
+        classObject.add("methods", methods);
+        state.get(originatingType(element), REFLECTION).add(classObject);
+    }
+
+    void addInitialization(RoundEnvironment roundEnvironment, JsonArray array, Element el) {
+        var name = el instanceof TypeElement ? toClassName((TypeElement) el)
+                : ((PackageElement) el).getQualifiedName().toString();
+        printMessage(roundEnvironment, "    Adding initialization of " + name);
+        array.add(name);
+    }
+
+    void addJni(RoundEnvironment roundEnvironment, JsonArray array, Element el) {
+        /* Only the annotated members are registered, never the whole class */
+        var type = el instanceof TypeElement ? (TypeElement) el : (TypeElement) el.getEnclosingElement();
+        var condition = explicitCondition(el.getAnnotation(Jni.class)::condition);
+        if (condition == null && el != type && type.getAnnotation(Jni.class) != null)
+            condition = explicitCondition(type.getAnnotation(Jni.class)::condition);
+        if (condition == null)
+            condition = conditionOf(el, null);
+        var cname = toClassName(type);
+        printMessage(roundEnvironment, "    Adding JNI " + cname + (el == type ? "" : " " + el));
+        var object = ConfigEntries.named(cname, condition);
+        if (el.getKind() == ElementKind.FIELD)
+            addFieldClassReflection(roundEnvironment, object, (VariableElement) el);
+        else if (el instanceof ExecutableElement)
+            addMethodClassReflection(roundEnvironment, object, (ExecutableElement) el);
+        array.add(object);
+    }
+
+    void addDowncall(RoundEnvironment roundEnvironment, JsonArray array, Element el) {
+        var downcall = el.getAnnotation(Downcall.class);
+        var object = foreign.describe(el, "Downcall", downcall.returnType(), downcall.parameterTypes());
+        if (object == null)
+            return;
+        printMessage(roundEnvironment, "    Adding downcall " + el + " " + object);
+        var options = new JsonObject();
+        if (downcall.firstVariadicArg() != -1) {
+            if (downcall.firstVariadicArg() < 0 || downcall.firstVariadicArg() > object.getAsJsonArray("parameterTypes").size()) {
+                processingEnv.getMessager().printMessage(Kind.ERROR, "[native-image-annotations] @Downcall: firstVariadicArg "
+                        + downcall.firstVariadicArg() + " is outside of the parameters.", el);
+                return;
+            }
+            options.addProperty("firstVariadicArg", downcall.firstVariadicArg());
+        }
+        if (downcall.captureCallState())
+            options.addProperty("captureCallState", true);
+        if (downcall.critical()) {
+            var critical = new JsonObject();
+            critical.addProperty("allowHeapAccess", downcall.allowHeapAccess());
+            options.add("critical", critical);
+        }
+        if (options.size() > 0)
+            object.add("options", options);
+        array.add(object);
+    }
+
+    void addUpcall(RoundEnvironment roundEnvironment, JsonArray array, Element el) {
+        var upcall = el.getAnnotation(Upcall.class);
+        var object = foreign.describe(el, "Upcall", upcall.returnType(), upcall.parameterTypes());
+        if (object == null)
+            return;
+        printMessage(roundEnvironment, "    Adding upcall " + el + " " + object);
         array.add(object);
     }
 
+    void addNativeImageOptions(RoundEnvironment roundEnvironment, JsonArray array, Element el) {
+        printMessage(roundEnvironment, "    Adding options of " + el);
+        var options = el.getAnnotation(NativeImageOptions.class);
+        var messager = processingEnv.getMessager();
+        var added = new ArrayList<String>();
+
+        var optimize = options.optimize();
+        if (!optimize.isEmpty()) {
+            if (optimize.matches("[0123bs]"))
+                added.add("-O" + optimize);
+            else
+                messager.printMessage(Kind.ERROR, "[native-image-annotations] Unknown optimization level '" + optimize
+                        + "', expected 0, 1, 2, 3, b or s.", el);
+        }
+
+        if (options.gc() != NativeImageOptions.Collector.DEFAULT)
+            added.add("--gc=" + (options.gc() == NativeImageOptions.Collector.G1 ? "G1" : options.gc().name().toLowerCase()));
+
+        var march = options.march();
+        if (!march.isEmpty()) {
+            if (march.matches("[A-Za-z0-9][A-Za-z0-9._+-]*"))
+                added.add("-march=" + march);
+            else
+                messager.printMessage(Kind.ERROR, "[native-image-annotations] Invalid -march '" + march + "'.", el);
+        }
+
+        if (options.pgo().length > 0 && options.pgoInstrument()) {
+            messager.printMessage(Kind.ERROR,
+                    "[native-image-annotations] pgo and pgoInstrument cannot be used together.", el);
+        } else if (options.pgoInstrument()) {
+            added.add("--pgo-instrument");
+        } else if (options.pgo().length > 0) {
+            var valid = true;
+            for (var profile : options.pgo()) {
+                if (profile.isBlank() || profile.matches(".*[\\s,].*")) {
+                    messager.printMessage(Kind.ERROR, "[native-image-annotations] Invalid pgo profile '" + profile
+                            + "', it may not be empty, or contain whitespace or commas.", el);
+                    valid = false;
+                }
+            }
+            if (valid)
+                added.add("--pgo=" + String.join(",", options.pgo()));
+        }
+
+        if (options.enablePreview())
+            added.add("--enable-preview");
+
+        var monitoring = new TreeSet<String>();
+        for (var m : options.monitoring()) {
+            monitoring.add(m.name().toLowerCase());
+        }
+        if (monitoring.contains("all"))
+            monitoring.retainAll(Set.of("all"));
+        if (!monitoring.isEmpty())
+            added.add("--enable-monitoring=" + String.join(",", monitoring));
+
+        for (var arg : options.args()) {
+            if (!arg.startsWith("-") || arg.matches(".*\\s.*"))
+                messager.printMessage(Kind.ERROR, "[native-image-annotations] Invalid argument '" + arg
+                        + "', it must start with '-' and may not contain whitespace.", el);
+            else
+                added.add(arg);
+        }
+
+        added.forEach(array::add);
+    }
+
+    private List<String> nativeImageOptions() {
+        /*
+         * Options may come from several modules or packages, but each may
+         * only be given one value.
+         */
+        var options = new LinkedHashMap<String, String>();
+        for (var entry : state.entries(OPTIONS)) {
+            var arg = entry.getAsString();
+            var key = arg.startsWith("-O") ? "-O" : arg.startsWith("--pgo") ? "--pgo" : arg.split("=", 2)[0];
+            var was = options.putIfAbsent(key, arg);
+            if (was != null && !was.equals(arg)) {
+                processingEnv.getMessager().printMessage(Kind.ERROR, "[native-image-annotations] Conflicting native image options '"
+                        + was + "' and '" + arg + "'.");
+            }
+        }
+        return new ArrayList<>(options.values());
+    }
+
     void addBundleToBundles(RoundEnvironment roundEnvironment, JsonArray array, TypeElement el) {
         var cname = toClassName(el);
         printMessage(roundEnvironment, "    Adding bundle " + cname);
-        var object = new JsonObject();
-        var ifArray = new JsonArray();
-        for (var l : el.getAnnotation(Bundle.class).locales()) {
-            ifArray.add(l);
-        }
-        object.addProperty("name", cname);
-        if(ifArray.size() > 0)
-            object.add("locales", ifArray);
-        array.add(object);
+        var locales = el.getAnnotation(Bundle.class).locales();
+        var condition = conditionOf(el, null);
+        if (bundleGenerator != null) {
+            /*
+             * Locales compiled into classes are found by ResourceBundle as classes,
+             * so they need only be reflectable rather than resources.
+             */
+            var generated = bundleGenerator.generate(el, cname, locales);
+            var reflection = state.get(originatingType(el), REFLECTION);
+            for (var bundleClass : generated.values()) {
+                printMessage(roundEnvironment, "    Adding bundle class " + bundleClass);
+                var classObject = ConfigEntries.named(bundleClass, condition);
+                var ctor = new JsonObject();
+                ctor.addProperty("name", "<init>");
+                ctor.add("parameterTypes", new JsonArray());
+                var methods = new JsonArray();
+                methods.add(ctor);
+                classObject.add("methods", methods);
+                reflection.add(classObject);
+            }
+            locales = BundleGenerator.remaining(locales, generated).toArray(new String[0]);
+        }
+        array.add(ConfigEntries.bundle(cname, List.of(locales), condition));
+    }
+
+    String conditionOf(Element element, Supplier<Class<?>> attribute) {
+        var condition = explicitCondition(attribute);
+        if (condition == null) {
+            /* Package default, if any */
+            var pkgCondition = processingEnv.getElementUtils().getPackageOf(element).getAnnotation(Condition.class);
+            if (pkgCondition != null)
+                condition = explicitCondition(pkgCondition::value);
+        }
+        return condition;
+    }
+
+    String explicitCondition(Supplier<Class<?>> attribute) {
+        if (attribute != null) {
+            try {
+                var clazz = attribute.get();
+                if (clazz != void.class)
+                    return clazz.getName();
+            } catch (MirroredTypeException mte) {
+                if (mte.getTypeMirror().getKind() != TypeKind.VOID)
+                    return toTypeName(mte.getTypeMirror());
+            }
+        }
+        return null;
+    }
+
+    static void addCondition(JsonObject object, String condition) {
+        if (condition != null) {
+            var conditionObject = new JsonObject();
+            conditionObject.addProperty("typeReachable", condition);
+            object.add("condition", conditionObject);
+        }
+    }
+
+    /* May be called twice, to hash and then write, so must emit the same each time */
+    interface JsonEmitter {
+        void emit(JsonWriter writer) throws IOException;
+    }
+
+    String originatingType(Element el) {
+        Element top = null;
+        for (var p = el; p != null && p.getKind() != ElementKind.PACKAGE; p = p.getEnclosingElement()) {
+            if (p instanceof TypeElement)
+                top = p;
+        }
+        return top == null ? el.toString() : toClassName((TypeElement) top);
     }
 
     String toClassName(TypeElement el) {
@@ -321,33 +1625,27 @@ public class NativeImageProcessor extends AbstractProcessor {
         return b.toString();
     }
 
+    String toTypeName(TypeMirror type) {
+        var erased = processingEnv.getTypeUtils().erasure(type);
+        if (erased.getKind() == TypeKind.ARRAY)
+            return toTypeName(((ArrayType) erased).getComponentType()) + "[]";
+        if (erased.getKind() == TypeKind.DECLARED)
+            return toClassName((TypeElement) ((DeclaredType) erased).asElement());
+        return erased.toString();
+    }
+
     void addMethodClassReflection(RoundEnvironment roundEnvironment, JsonObject classObject, ExecutableElement exec) {
         printMessage(roundEnvironment, "    Adding class " + exec.toString());
-        if (!classObject.has("methods")) {
-            classObject.add("methods", new JsonArray());
+        var types = new ArrayList<String>();
+        for (var parm : exec.getParameters()) {
+            types.add(toTypeName(parm.asType()));
         }
-        var arr = classObject.get("methods").getAsJsonArray();
-        var m = new JsonObject();
-        m.addProperty("name", exec.getSimpleName().toString());
-        if (!exec.getParameters().isEmpty()) {
-            var types = new JsonArray();
-            for (var parm : exec.getParameters()) {
-                types.add(parm.asType().toString());
-            }
-            m.add("parameterTypes", types);
-        }
-        arr.add(m);
+        ConfigEntries.addMethod(classObject, exec.getSimpleName().toString(), types);
     }
 
     void addFieldClassReflection(RoundEnvironment roundEnvironment, JsonObject classObject, VariableElement exec) {
         printMessage(roundEnvironment, "    Adding field" + exec.toString());
-        if (!classObject.has("fields")) {
-            classObject.add("fields", new JsonArray());
-        }
-        var arr = classObject.get("fields").getAsJsonArray();
-        var m = new JsonObject();
-        m.addProperty("name", exec.getSimpleName().toString());
-        arr.add(m);
+        ConfigEntries.addField(classObject, exec.getSimpleName().toString());
     }
 
     void addOtherToSerialization(OtherSerializable otherNative, RoundEnvironment roundEnvironment, JsonArray array, TypeElement element) {
@@ -360,7 +1658,7 @@ public class NativeImageProcessor extends AbstractProcessor {
     		cname = mte.getTypeMirror().toString();
     	}
     	
-    	addNameToSerialization(roundEnvironment, array, cname);
+    	addNameToSerialization(roundEnvironment, array, cname, conditionOf(element, null));
     }
 
     void addOtherToReflection(OtherReflectable otherNative, RoundEnvironment roundEnvironment, JsonArray array, TypeElement element) {
@@ -369,32 +1667,47 @@ public class NativeImageProcessor extends AbstractProcessor {
         var invoke = element.getAnnotation(Invoke.class);
     	
     	String cname;
+    	TypeElement type;
     	try {
         	var clazz = otherNative.value();
     		cname = clazz.getName();
+    		type = processingEnv.getElementUtils().getTypeElement(clazz.getCanonicalName());
     	}
     	catch(MirroredTypeException mte) {
     		cname = mte.getTypeMirror().toString();
+    		type = mte.getTypeMirror() instanceof DeclaredType ? (TypeElement) ((DeclaredType) mte.getTypeMirror()).asElement() : null;
     	}
 		var reflectAll = otherNative.all();
         printMessage(roundEnvironment, "    Adding class " + cname.toString());
-        var object = new JsonObject();
-        object.addProperty("name", cname);
+        var condition = conditionOf(element, otherNative::condition);
+        var object = ConfigEntries.named(cname, condition);
         array.add(object);
-        addReflectable(typeReflect, query, invoke, object, reflectAll);
+        ConfigEntries.addFlags(object, ConfigEntries.values(typeReflect), ConfigEntries.values(query),
+                ConfigEntries.values(invoke), reflectAll);
+        if (expander != null && type != null)
+            expander.expand(roundEnvironment, array, object, type);
+        if (closure != null && type != null)
+            closure.close(roundEnvironment, array, originatingType(element), type, object, condition);
     }
 
     void addClassToReflection(RoundEnvironment roundEnvironment, JsonArray array, TypeElement element) {
+        addClassToReflection(roundEnvironment, array, element, null);
+    }
+
+    void addClassToReflection(RoundEnvironment roundEnvironment, JsonArray array, TypeElement element, String enclosingCondition) {
         var cname = toClassName(element);
         printMessage(roundEnvironment, "    Adding class " + cname.toString());
-        var reflectable = element.getAnnotation(Reflectable.class);
-        var typeReflect = element.getAnnotation(TypeReflect.class);
-        var query = element.getAnnotation(Query.class);
-        var invoke = element.getAnnotation(Invoke.class);
-        var object = new JsonObject();
+        var reflectable = index.annotation(element, Reflectable.class);
+        var typeReflect = index.annotation(element, TypeReflect.class);
+        var query = index.annotation(element, Query.class);
+        var invoke = index.annotation(element, Invoke.class);
         var ref = reflectable != null && reflectable.all();
         
-        object.addProperty("name", cname);
+        /* Nested classes take the condition of the enclosing class unless they have their own */
+        var condition = reflectable == null ? null : explicitCondition(reflectable::condition);
+        if (condition == null)
+            condition = enclosingCondition == null ? conditionOf(element, null) : enclosingCondition;
+        var object = ConfigEntries.named(cname, condition);
         array.add(object);
         int cons = 0;
         int pcons = 0;
@@ -420,73 +1733,26 @@ public class NativeImageProcessor extends AbstractProcessor {
                     addFieldClassReflection(roundEnvironment, object, (VariableElement) el);
             } else if (el.getKind() == ElementKind.CLASS) {
                 clz++;
-                addClassToReflection(roundEnvironment, array, (TypeElement) el);
+                addClassToReflection(roundEnvironment, array, (TypeElement) el, condition);
             }
         }
 
-        addReflectable(typeReflect, query, invoke, object, ref);
-    }
-
-	private void addReflectable(TypeReflect typeReflect, Query query, Invoke invoke, JsonObject object, boolean reflectAll) {
-		if (query != null || reflectAll || typeReflect != null) {
-            if (reflectAll || (typeReflect != null && typeReflect.constructors())
-                    || (query != null && (query.all() || query.publicConstructors())))
-                object.addProperty("queryAllPublicConstructors", true);
-            if (reflectAll || (typeReflect != null && typeReflect.constructors())
-                    || (query != null && (query.all() || query.declaredConstructors())))
-                object.addProperty("queryAllDeclaredConstructors", true);
-            if (reflectAll || (typeReflect != null && typeReflect.methods())
-                    || (query != null && (query.all() || query.publicMethods())))
-                object.addProperty("queryAllPublicMethods", true);
-            if (reflectAll || (typeReflect != null && typeReflect.methods())
-                    || (query != null && (query.all() || query.declaredMethods())))
-                object.addProperty("queryAllDeclaredMethods", true);
-        } else {
-            /* Auto */
-
-            /* Needed? */
-
-//			if(pcons > 0) {
-//				object.addProperty("queryAllPublicConstructors", true);
-//			}
-//			if(mth > 0) {
-//				object.addProperty("queryAllDeclaredMethods", true);
-//			}
-        }
-
-        if (invoke != null || reflectAll || typeReflect != null) {
-            if (reflectAll || (typeReflect != null && typeReflect.constructors())
-                    || (invoke != null && (invoke.all() || invoke.publicConstructors())))
-                object.addProperty("allPublicConstructors", true);
-            if (reflectAll || (typeReflect != null && typeReflect.constructors())
-                    || (invoke != null && (invoke.all() || invoke.declaredConstructors())))
-                object.addProperty("allDeclaredConstructors", true);
-            if (reflectAll || (typeReflect != null && typeReflect.methods())
-                    || (invoke != null && (invoke.all() || invoke.publicMethods())))
-                object.addProperty("allPublicMethods", true);
-            if (reflectAll || (typeReflect != null && typeReflect.methods())
-                    || (invoke != null && (invoke.all() || invoke.declaredMethods())))
-                object.addProperty("allDeclaredMethods", true);
-            if (reflectAll || (typeReflect != null && typeReflect.fields())
-                    || (invoke != null && (invoke.all() || invoke.publicFields())))
-                object.addProperty("allPublicFields", true);
-            if (reflectAll || (typeReflect != null && typeReflect.fields())
-                    || (invoke != null && (invoke.all() || invoke.declaredFields())))
-                object.addProperty("allDeclaredFields", true);
-            if (reflectAll || (typeReflect != null && typeReflect.classes())
-                    || (invoke != null && (invoke.all() || invoke.publicClasses())))
-                object.addProperty("allPublicClasses", true);
-            if (reflectAll || (typeReflect != null && typeReflect.classes())
-                    || (invoke != null && (invoke.all() || invoke.declaredClasses())))
-                object.addProperty("allDeclaredClasses", true);
-        } else {
-            /* Auto */
-            /* Needed? */
-
-            // if(clz > 0) {
-            // object.addProperty("allDeclaredClasses", true);
-            // }
+        ConfigEntries.addFlags(object, ConfigEntries.values(typeReflect), ConfigEntries.values(query),
+                ConfigEntries.values(invoke), ref);
+        if (expander != null)
+            expander.expand(roundEnvironment, array, object, element);
+        if (closure != null)
+            closure.close(roundEnvironment, array, originatingType(element), element, object, condition);
+        if (reflectable != null && reflectable.accessors()) {
+            /* Members that may be called directly no longer need to be reflected */
+            var accessors = accessorGenerator.generate(element, object);
+            if (accessors == null) {
+                processingEnv.getMessager().printMessage(Kind.WARNING,
+                        "[native-image-annotations] No accessible members to generate accessors for.", element);
+            } else {
+                printMessage(roundEnvironment, "    Adding accessors " + accessors);
+                array.add(ConfigEntries.named(accessors, condition));
+            }
         }
-	}
-
-}
\ No newline at end of file
+    }
+}
@@ -7,7 +7,7 @@ import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
 @Target({ElementType.TYPE})
-@Retention(RetentionPolicy.SOURCE)
+@Retention(RetentionPolicy.CLASS)
 @Repeatable(OtherReflectables.class)
 public @interface OtherReflectable {
 	Class<?> value();
@@ -19,4 +19,6 @@ public @interface OtherReflectable {
 	Query query() default @Query;
 	
 	TypeReflect typeReflect() default @TypeReflect;
+	
+	Class<?> condition() default void.class;
 }
@@ -0,0 +1,104 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import javax.annotation.processing.Filer;
+import javax.tools.JavaFileManager.Location;
+
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * The content hashes of the generated files. An existing file with the same
+ * hash is left as it is, so its timestamp only changes when its content does,
+ * and the manifest gives build tools a single small file to key on.
+ */
+final class OutputManifest {
+    static final String MANIFEST_FILE = "native-image-annotations-manifest.json";
+    static final String ALGORITHM = "SHA-256";
+
+    private final Map<String, String> hashes = new TreeMap<>();
+
+    void clear() {
+        hashes.clear();
+    }
+
+    boolean isEmpty() {
+        return hashes.isEmpty();
+    }
+
+    void add(String fileName, String hash) {
+        hashes.put(fileName, hash);
+    }
+
+    /**
+     * The names of the files listed in a manifest written by an earlier
+     * compilation, or none if there is no readable manifest.
+     */
+    static Set<String> load(Filer filer, Location location, String path) {
+        var files = new TreeSet<String>();
+        try {
+            var resource = filer.getResource(location, "", path);
+            try (var r = new InputStreamReader(resource.openInputStream(), StandardCharsets.UTF_8)) {
+                var listed = JsonParser.parseReader(r).getAsJsonObject().getAsJsonObject("files");
+                if (listed != null)
+                    files.addAll(listed.keySet());
+            }
+        } catch (IOException | IllegalArgumentException | JsonParseException | IllegalStateException e) {
+            /* Nothing written before, or not readable */
+        }
+        return files;
+    }
+
+    static String hash(byte[] content) {
+        return hex(digest().digest(content));
+    }
+
+    static String hash(InputStream in) throws IOException {
+        var digest = digest();
+        var buf = new byte[8192];
+        for (var read = in.read(buf); read != -1; read = in.read(buf))
+            digest.update(buf, 0, read);
+        return hex(digest.digest());
+    }
+
+    static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available.", e);
+        }
+    }
+
+    static String hex(byte[] digest) {
+        var hex = new StringBuilder(digest.length * 2);
+        for (var b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+            hex.append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+
+    void write(JsonWriter writer) throws IOException {
+        writer.beginObject();
+        writer.name("algorithm").value(ALGORITHM);
+        writer.name("files");
+        writer.beginObject();
+        for (var entry : hashes.entrySet()) {
+            writer.name(entry.getKey()).value(entry.getValue());
+        }
+        writer.endObject();
+        writer.endObject();
+    }
+}
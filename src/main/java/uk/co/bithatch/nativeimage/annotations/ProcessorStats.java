@@ -0,0 +1,109 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.google.gson.stream.JsonWriter;
+
+final class ProcessorStats {
+    static final String STATS_FILE = "native-image-annotations-stats.json";
+
+    static final String DISCOVERY = "discovery";
+    static final String REFLECTION = "reflection";
+    static final String RESOURCES = "resources";
+    static final String PROXIES = "proxies";
+    static final String SERIALIZATION = "serialization";
+    static final String INITIALIZATION = "initialization";
+    static final String WRITE = "write";
+
+    private final Map<String, Long> phases = new LinkedHashMap<>();
+    private final Map<String, FileStats> files = new LinkedHashMap<>();
+    private int rounds;
+    private int types;
+
+    ProcessorStats() {
+        for (var phase : new String[] { DISCOVERY, REFLECTION, RESOURCES, PROXIES, SERIALIZATION, INITIALIZATION, WRITE }) {
+            phases.put(phase, 0L);
+        }
+    }
+
+    void round() {
+        rounds++;
+    }
+
+    int rounds() {
+        return rounds;
+    }
+
+    void types(int types) {
+        this.types = types;
+    }
+
+    long phase(String phase, long started) {
+        var now = System.nanoTime();
+        phases.merge(phase, now - started, Long::sum);
+        return now;
+    }
+
+    void file(String name, int entries, long bytes) {
+        files.put(name, new FileStats(entries, bytes));
+    }
+
+    int entries() {
+        return files.values().stream().mapToInt(f -> f.entries).sum();
+    }
+
+    long bytes() {
+        return files.values().stream().mapToLong(f -> f.bytes).sum();
+    }
+
+    long millis() {
+        return TimeUnit.NANOSECONDS.toMillis(phases.values().stream().mapToLong(Long::longValue).sum());
+    }
+
+    void write(Writer out) throws IOException {
+        var w = new JsonWriter(out);
+        w.setIndent("  ");
+        w.beginObject();
+        w.name("rounds").value(rounds);
+        w.name("types").value(types);
+        w.name("phases");
+        w.beginObject();
+        for (var phase : phases.entrySet()) {
+            w.name(phase.getKey());
+            w.beginObject();
+            w.name("millis").value(TimeUnit.NANOSECONDS.toMillis(phase.getValue()));
+            w.name("nanos").value(phase.getValue());
+            w.endObject();
+        }
+        w.endObject();
+        w.name("files");
+        w.beginObject();
+        for (var file : files.entrySet()) {
+            w.name(file.getKey());
+            w.beginObject();
+            w.name("entries").value(file.getValue().entries);
+            w.name("bytes").value(file.getValue().bytes);
+            w.endObject();
+        }
+        w.endObject();
+        w.name("entries").value(entries());
+        w.name("bytes").value(bytes());
+        w.endObject();
+        w.flush();
+        out.write(System.lineSeparator());
+    }
+
+    private final static class FileStats {
+        private final int entries;
+        private final long bytes;
+
+        private FileStats(int entries, long bytes) {
+            this.entries = entries;
+            this.bytes = bytes;
+        }
+    }
+}
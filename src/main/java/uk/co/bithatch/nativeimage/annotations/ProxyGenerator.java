@@ -0,0 +1,252 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.processing.Filer;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.ExecutableType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+
+final class ProxyGenerator {
+    static final String SUFFIX = "StaticProxy";
+
+    private final NativeImageProcessor processor;
+    private final Filer filer;
+    private final Elements elements;
+    private final Types types;
+
+    ProxyGenerator(NativeImageProcessor processor, Filer filer, Elements elements, Types types) {
+        this.processor = processor;
+        this.filer = filer;
+        this.elements = elements;
+        this.types = types;
+    }
+
+    /**
+     * Generate a class implementing all of the interfaces, that forwards every
+     * call to a handler with the index of the method. Returns the name of the
+     * generated class, or <code>null</code> if one of the interfaces cannot be
+     * implemented from the package of the first.
+     */
+    String generate(TypeElement type, List<TypeElement> interfaces) {
+        var pkg = elements.getPackageOf(type);
+        for (var iface : interfaces) {
+            if (iface.getKind() != ElementKind.INTERFACE || !AccessorGenerator.accessible(iface)
+                    || (!iface.getModifiers().contains(Modifier.PUBLIC) && !elements.getPackageOf(iface).equals(pkg)))
+                return null;
+        }
+
+        var pkgName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+        var binaryName = processor.toClassName(type);
+        var simpleName = (pkgName.isEmpty() ? binaryName : binaryName.substring(pkgName.length() + 1)).replace('$', '_')
+                + SUFFIX;
+        var qualifiedName = pkgName.isEmpty() ? simpleName : pkgName + "." + simpleName;
+        try {
+            write(type, pkgName, simpleName, interfaces, methods(interfaces));
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not generate proxy " + qualifiedName + ".", e);
+        }
+        return qualifiedName;
+    }
+
+    private Map<String, ProxyMethod> methods(List<TypeElement> interfaces) {
+        /*
+         * As a JDK proxy, the Object methods that are dispatched come first,
+         * then every abstract and default method of the interfaces in the order
+         * found. Default methods go to the handler too, rather than running
+         * their own code.
+         */
+        var methods = new LinkedHashMap<String, ProxyMethod>();
+        var object = elements.getTypeElement("java.lang.Object");
+        for (var method : ElementFilter.methodsIn(object.getEnclosedElements())) {
+            var name = method.getSimpleName().toString();
+            if ((name.equals("hashCode") || name.equals("toString")) && method.getParameters().isEmpty()
+                    || name.equals("equals"))
+                add(methods, (DeclaredType) object.asType(), method);
+        }
+        for (var iface : interfaces) {
+            /* As the proxy implements the raw interfaces, so are their methods seen */
+            var declared = (DeclaredType) types.erasure(iface.asType());
+            for (var method : ElementFilter.methodsIn(elements.getAllMembers(iface))) {
+                if (method.getModifiers().contains(Modifier.ABSTRACT) || method.getModifiers().contains(Modifier.DEFAULT))
+                    add(methods, declared, method);
+            }
+        }
+        return methods;
+    }
+
+    private void add(Map<String, ProxyMethod> methods, DeclaredType iface, ExecutableElement method) {
+        /*
+         * With the type arguments of the super interfaces it was inherited
+         * through, so a method of Supplier<String> returns a String
+         */
+        var resolved = (ExecutableType) types.asMemberOf(iface, method);
+        var params = new ArrayList<String>();
+        for (var param : resolved.getParameterTypes()) {
+            params.add(processor.toTypeName(types.erasure(param)));
+        }
+        var key = method.getSimpleName() + "(" + String.join(",", params) + ")";
+        var thrown = new ArrayList<TypeMirror>();
+        for (var t : resolved.getThrownTypes()) {
+            thrown.add(types.erasure(t));
+        }
+        var existing = methods.get(key);
+        if (existing == null) {
+            methods.put(key, new ProxyMethod(methods.size(), key, method, resolved, thrown));
+        } else if (!names(existing.thrown).equals(names(thrown))) {
+            /* Declared differently by more than one interface, so it may throw nothing checked */
+            existing.thrown.clear();
+        }
+    }
+
+    private void write(TypeElement type, String pkgName, String simpleName, List<TypeElement> interfaces,
+            Map<String, ProxyMethod> methods) throws IOException {
+        var source = filer.createSourceFile(pkgName.isEmpty() ? simpleName : pkgName + "." + simpleName, type);
+        var implemented = new ArrayList<String>();
+        for (var iface : interfaces) {
+            implemented.add(iface.getQualifiedName().toString());
+        }
+        try (var w = new PrintWriter(source.openWriter())) {
+            if (!pkgName.isEmpty()) {
+                w.println("package " + pkgName + ";");
+                w.println();
+            }
+            w.println("/* Generated by native-image-annotations */");
+            w.println("@SuppressWarnings({ \"unchecked\", \"rawtypes\" })");
+            w.println("public final class " + simpleName + " implements " + String.join(", ", implemented) + " {");
+            w.println();
+            w.println("    public interface Handler {");
+            w.println("        Object invoke(Object proxy, int method, Object[] args) throws Throwable;");
+            w.println("    }");
+            w.println();
+            w.println("    private static final String[] METHODS = {");
+            for (var method : methods.values()) {
+                w.println("        " + BundleGenerator.literal(method.key) + ",");
+            }
+            w.println("    };");
+            w.println();
+            w.println("    private final Handler handler;");
+            w.println();
+            w.println("    public " + simpleName + "(Handler handler) {");
+            w.println("        this.handler = handler;");
+            w.println("    }");
+            w.println();
+            w.println("    public static int methodId(String name, String... parameterTypes) {");
+            w.println("        String key = name + \"(\" + String.join(\",\", parameterTypes) + \")\";");
+            w.println("        for (int i = 0; i < METHODS.length; i++) {");
+            w.println("            if (METHODS[i].equals(key))");
+            w.println("                return i;");
+            w.println("        }");
+            w.println("        return -1;");
+            w.println("    }");
+            w.println();
+            w.println("    public static String method(int method) {");
+            w.println("        return METHODS[method];");
+            w.println("    }");
+            for (var method : methods.values()) {
+                w.println();
+                writeMethod(w, method);
+            }
+            w.println("}");
+        }
+    }
+
+    private void writeMethod(PrintWriter w, ProxyMethod method) {
+        var exec = method.element;
+        var paramTypes = method.type.getParameterTypes();
+        var params = new ArrayList<String>();
+        var args = new ArrayList<String>();
+        for (var i = 0; i < paramTypes.size(); i++) {
+            var varargs = exec.isVarArgs() && i == paramTypes.size() - 1;
+            var paramType = sourceType(paramTypes.get(i));
+            if (varargs)
+                paramType = paramType.substring(0, paramType.length() - 2) + "...";
+            params.add(paramType + " p" + i);
+            args.add("p" + i);
+        }
+        var returnType = method.type.getReturnType();
+        var returns = sourceType(returnType);
+        w.println("    @Override");
+        w.println("    public " + returns + " " + exec.getSimpleName() + "(" + String.join(", ", params) + ")"
+                + (method.thrown.isEmpty() ? "" : " throws " + String.join(", ", names(method.thrown))) + " {");
+        w.println("        try {");
+        var call = "handler.invoke(this, " + method.id + ", "
+                + (args.isEmpty() ? "new Object[0]" : "new Object[] { " + String.join(", ", args) + " }") + ")";
+        if (returnType.getKind() == TypeKind.VOID)
+            w.println("            " + call + ";");
+        else if (returns.equals("java.lang.Object"))
+            w.println("            return " + call + ";");
+        else
+            w.println("            return (" + returns + ") " + call + ";");
+        var rethrown = rethrown(method.thrown);
+        w.println("        } catch (" + String.join(" | ", rethrown) + " e) {");
+        w.println("            throw e;");
+        if (!rethrown.contains("java.lang.Throwable")) {
+            w.println("        } catch (Throwable t) {");
+            w.println("            throw new java.lang.reflect.UndeclaredThrowableException(t);");
+        }
+        w.println("        }");
+        w.println("    }");
+    }
+
+    private List<String> rethrown(List<TypeMirror> thrown) {
+        /* Alternatives in a multi-catch may not be subclasses of one another */
+        var all = new ArrayList<TypeMirror>();
+        all.add(elements.getTypeElement("java.lang.RuntimeException").asType());
+        all.add(elements.getTypeElement("java.lang.Error").asType());
+        all.addAll(thrown);
+        var rethrown = new ArrayList<String>();
+        for (var i = 0; i < all.size(); i++) {
+            var covered = false;
+            for (var j = 0; j < all.size(); j++) {
+                if (i != j && types.isSubtype(all.get(i), all.get(j)) && !types.isSameType(all.get(i), all.get(j)))
+                    covered = true;
+            }
+            var name = sourceType(all.get(i));
+            if (!covered && !rethrown.contains(name))
+                rethrown.add(name);
+        }
+        return rethrown;
+    }
+
+    private List<String> names(List<TypeMirror> types) {
+        var names = new ArrayList<String>();
+        for (var t : types) {
+            names.add(sourceType(t));
+        }
+        return names;
+    }
+
+    private String sourceType(TypeMirror type) {
+        return types.erasure(type).toString();
+    }
+
+    private final static class ProxyMethod {
+        private final int id;
+        private final String key;
+        private final ExecutableElement element;
+        private final ExecutableType type;
+        private final List<TypeMirror> thrown;
+
+        private ProxyMethod(int id, String key, ExecutableElement element, ExecutableType type, List<TypeMirror> thrown) {
+            this.id = id;
+            this.key = key;
+            this.element = element;
+            this.type = type;
+            this.thrown = thrown;
+        }
+    }
+}
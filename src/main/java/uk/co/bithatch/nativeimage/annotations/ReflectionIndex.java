@@ -0,0 +1,84 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+final class ReflectionIndex {
+    private final Map<String, JsonObject> classes = new TreeMap<>();
+
+    void addAll(Iterable<JsonElement> entries) {
+        for (var entry : entries) {
+            add(entry.getAsJsonObject());
+        }
+    }
+
+    void add(JsonObject entry) {
+        var key = key(entry);
+        var existing = classes.get(key);
+        if (existing == null) {
+            existing = new JsonObject();
+            classes.put(key, existing);
+        }
+        merge(existing, entry);
+    }
+
+    int size() {
+        return classes.size();
+    }
+
+    Collection<JsonObject> entries() {
+        return classes.values();
+    }
+
+    static String key(JsonObject entry) {
+        var condition = entry.get("condition");
+        return condition == null ? entry.get("name").getAsString()
+                : entry.get("name").getAsString() + " " + condition.toString();
+    }
+
+    static void merge(JsonObject into, JsonObject from) {
+        for (var property : from.entrySet()) {
+            var name = property.getKey();
+            var value = property.getValue();
+            if (name.equals("methods") || name.equals("queriedMethods")) {
+                into.add(name, union(into.getAsJsonArray(name), value.getAsJsonArray(), true));
+            } else if (name.equals("fields")) {
+                into.add(name, union(into.getAsJsonArray(name), value.getAsJsonArray(), false));
+            } else if (value.isJsonPrimitive() && value.getAsJsonPrimitive().isBoolean()) {
+                var was = into.get(name);
+                into.addProperty(name, value.getAsBoolean() || (was != null && was.getAsBoolean()));
+            } else if (!into.has(name)) {
+                into.add(name, value.deepCopy());
+            }
+        }
+    }
+
+    private static JsonArray union(JsonArray current, JsonArray more, boolean withParameters) {
+        var members = new TreeMap<String, JsonElement>();
+        if (current != null) {
+            for (var member : current) {
+                members.put(memberKey(member.getAsJsonObject(), withParameters), member);
+            }
+        }
+        for (var member : more) {
+            members.putIfAbsent(memberKey(member.getAsJsonObject(), withParameters), member.deepCopy());
+        }
+        var arr = new JsonArray(members.size());
+        members.values().forEach(arr::add);
+        return arr;
+    }
+
+    private static String memberKey(JsonObject member, boolean withParameters) {
+        var name = member.get("name").getAsString();
+        if (withParameters) {
+            var parameters = member.get("parameterTypes");
+            return parameters == null ? name + "()" : name + parameters.toString();
+        }
+        return name;
+    }
+}
@@ -6,10 +6,12 @@ import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
 @Target(ElementType.TYPE)
-@Retention(RetentionPolicy.SOURCE)
+@Retention(RetentionPolicy.CLASS)
 public @interface Resource {
 
 	String[] value() default {};
 	
 	boolean siblings() default false;
+	
+	Class<?> condition() default void.class;
 }
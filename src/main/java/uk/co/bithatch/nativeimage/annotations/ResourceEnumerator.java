@@ -0,0 +1,194 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.util.Elements;
+import javax.tools.Diagnostic.Kind;
+import javax.tools.StandardLocation;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+final class ResourceEnumerator {
+
+    enum Mode {
+        PATTERNS, LITERAL, GLOB
+    }
+
+    private final Mode mode;
+    private final Messager messager;
+    private final String generated;
+    private final Set<Path> roots = new LinkedHashSet<>();
+    private Map<String, Long> files;
+    private Map<String, Path> paths;
+
+    ResourceEnumerator(Mode mode, Messager messager, String generated) {
+        this.mode = mode;
+        this.messager = messager;
+        this.generated = generated;
+    }
+
+    void addDirectories(String dirs) {
+        for (var dir : dirs.split("[,\\" + File.pathSeparator + "]")) {
+            if (!dir.isBlank())
+                roots.add(Paths.get(dir.trim()).toAbsolutePath().normalize());
+        }
+    }
+
+    void addClassOutput(Filer filer) {
+        addRoot(filer, StandardLocation.CLASS_OUTPUT, "", MetadataState.STATE_FILE, 0);
+    }
+
+    void addSourceRoot(Filer filer, Elements elements, Element element) {
+        /*
+         * The Filer cannot list a location, so the root of the source path is
+         * found from the source file of a top level type being compiled.
+         */
+        if (!(element instanceof TypeElement) || ((TypeElement) element).getNestingKind() != NestingKind.TOP_LEVEL)
+            return;
+        var pkg = elements.getPackageOf(element);
+        var pkgName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+        var depth = pkgName.isEmpty() ? 0 : pkgName.split("\\.").length;
+        addRoot(filer, StandardLocation.SOURCE_PATH, pkgName, element.getSimpleName() + ".java", depth);
+    }
+
+    private void addRoot(Filer filer, StandardLocation location, String pkg, String name, int depth) {
+        try {
+            var uri = filer.getResource(location, pkg, name).toUri();
+            if ("file".equals(uri.getScheme())) {
+                var dir = Paths.get(uri).getParent();
+                for (var i = 0; i < depth && dir != null; i++)
+                    dir = dir.getParent();
+                if (dir != null && roots.add(dir.toAbsolutePath().normalize()))
+                    files = null;
+            }
+        } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+            /* Not available in this environment */
+        }
+    }
+
+    Set<JsonElement> enumerate(Set<JsonElement> resources) {
+        if (mode == Mode.PATTERNS)
+            return resources;
+        var enumerated = new LinkedHashSet<JsonElement>();
+        for (var entry : resources) {
+            var object = entry.getAsJsonObject();
+            var pattern = object.get("pattern").getAsString();
+            List<String> matches;
+            try {
+                var regex = Pattern.compile(pattern);
+                matches = files().keySet().stream().filter(f -> regex.matcher(f).matches()).collect(Collectors.toList());
+            } catch (PatternSyntaxException pse) {
+                messager.printMessage(Kind.WARNING, "[native-image-annotations] Resource pattern '" + pattern
+                        + "' is not a valid regular expression, and will be left as it is.");
+                enumerated.add(entry);
+                continue;
+            }
+
+            if (matches.isEmpty()) {
+                /*
+                 * The resource may come from elsewhere at image build time (another
+                 * jar, or generated later), so the pattern is kept rather than lost.
+                 */
+                messager.printMessage(Kind.WARNING, "[native-image-annotations] Resource pattern '" + pattern
+                        + "' matches nothing at compile time, and will be left as it is.");
+                enumerated.add(entry);
+                continue;
+            }
+
+            for (var match : matches) {
+                var literal = new JsonObject();
+                if (object.has("condition"))
+                    literal.add("condition", object.get("condition"));
+                if (mode == Mode.GLOB)
+                    literal.addProperty("glob", escapeGlob(match));
+                else
+                    literal.addProperty("pattern", Pattern.quote(match));
+                enumerated.add(literal);
+            }
+        }
+        return enumerated;
+    }
+
+    /**
+     * The files a pattern matches at compile time, with their sizes.
+     */
+    Map<String, Long> matching(String pattern) {
+        var matching = new TreeMap<String, Long>();
+        try {
+            var regex = Pattern.compile(pattern);
+            files().forEach((name, size) -> {
+                if (regex.matcher(name).matches())
+                    matching.put(name, size);
+            });
+        } catch (PatternSyntaxException pse) {
+            /* Reported when enumerating, if at all */
+        }
+        return matching;
+    }
+
+    /**
+     * Where a file found at compile time is, or <code>null</code> if it was not
+     * found.
+     */
+    Path path(String name) {
+        files();
+        return paths.get(name);
+    }
+
+    private Map<String, Long> files() {
+        if (files == null) {
+            files = new TreeMap<>();
+            paths = new TreeMap<>();
+            for (var root : roots) {
+                if (!Files.isDirectory(root))
+                    continue;
+                try (var walk = Files.walk(root)) {
+                    walk.filter(Files::isRegularFile).forEach(file -> {
+                        var name = root.relativize(file).toString().replace(File.separatorChar, '/');
+                        /*
+                         * Classes and sources are not resources, even though
+                         * the broad patterns would match them, and neither is
+                         * the configuration this processor writes.
+                         */
+                        if (!name.endsWith(".class") && !name.endsWith(".java") && !name.startsWith(generated)
+                                && files.putIfAbsent(name, file.toFile().length()) == null)
+                            paths.put(name, file);
+                    });
+                } catch (IOException | UncheckedIOException e) {
+                    messager.printMessage(Kind.WARNING,
+                            "[native-image-annotations] Could not list resources in " + root + ". " + e.getMessage());
+                }
+            }
+        }
+        return files;
+    }
+
+    static String escapeGlob(String path) {
+        var glob = new StringBuilder();
+        for (var c : path.toCharArray()) {
+            if ("*?{}[]\\".indexOf(c) != -1)
+                glob.append('\\');
+            glob.append(c);
+        }
+        return glob.toString();
+    }
+}
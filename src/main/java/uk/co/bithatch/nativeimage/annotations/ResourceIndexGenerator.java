@@ -0,0 +1,192 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import javax.annotation.processing.Filer;
+
+/**
+ * Copies the resources included with {@link Resource} into a single index, with
+ * their names, sizes and CRCs ahead of their content, and generates a class to
+ * look them up in it. The class is initialized at build time, so in an image
+ * the content is part of the image heap and each lookup is a binary search,
+ * without the URLs and connections of <code>ClassLoader.getResource()</code>.
+ */
+final class ResourceIndexGenerator {
+    static final String INDEX_FILE = "resource-index.bin";
+    /* "NIRX" */
+    static final int MAGIC = 0x4e495258;
+    static final int VERSION = 1;
+
+    private final Filer filer;
+    private final String className;
+    private final String indexPath;
+    private boolean generated;
+
+    ResourceIndexGenerator(Filer filer, String className, String indexPath) {
+        this.filer = filer;
+        this.className = className;
+        this.indexPath = indexPath;
+    }
+
+    String className() {
+        return className;
+    }
+
+    /**
+     * Generate the lookup class, once for the compilation. It does not depend on
+     * which resources there are, so is generated in the first round, where it
+     * can still be compiled along with everything else.
+     */
+    void generate() {
+        if (generated)
+            return;
+        generated = true;
+        var idx = className.lastIndexOf('.');
+        var pkgName = idx == -1 ? "" : className.substring(0, idx);
+        var simpleName = className.substring(idx + 1);
+        try (var w = new PrintWriter(filer.createSourceFile(className).openWriter())) {
+            if (!pkgName.isEmpty()) {
+                w.println("package " + pkgName + ";");
+                w.println();
+            }
+            w.println("/* Generated by native-image-annotations */");
+            w.println("public final class " + simpleName + " {");
+            w.println("    public static final String INDEX = " + BundleGenerator.literal(indexPath) + ";");
+            w.println();
+            w.println("    private static final String[] NAMES;");
+            w.println("    private static final int[] OFFSETS;");
+            w.println("    private static final int[] SIZES;");
+            w.println("    private static final int[] CRCS;");
+            w.println("    private static final byte[] DATA;");
+            w.println("    private static final java.nio.ByteBuffer[] BUFFERS;");
+            w.println();
+            w.println("    static {");
+            w.println("        try (java.io.InputStream in = " + simpleName + ".class.getClassLoader().getResourceAsStream(INDEX)) {");
+            w.println("            if (in == null) {");
+            w.println("                NAMES = new String[0];");
+            w.println("                OFFSETS = SIZES = CRCS = new int[0];");
+            w.println("                DATA = new byte[0];");
+            w.println("            } else {");
+            w.println("                java.io.DataInputStream din = new java.io.DataInputStream(new java.io.BufferedInputStream(in));");
+            w.println("                if (din.readInt() != " + MAGIC + " || din.readShort() != " + VERSION + ")");
+            w.println("                    throw new IllegalStateException(INDEX + \" is not a resource index.\");");
+            w.println("                int count = din.readInt();");
+            w.println("                NAMES = new String[count];");
+            w.println("                OFFSETS = new int[count];");
+            w.println("                SIZES = new int[count];");
+            w.println("                CRCS = new int[count];");
+            w.println("                DATA = new byte[din.readInt()];");
+            w.println("                for (int i = 0; i < count; i++) {");
+            w.println("                    NAMES[i] = din.readUTF();");
+            w.println("                    OFFSETS[i] = din.readInt();");
+            w.println("                    SIZES[i] = din.readInt();");
+            w.println("                    CRCS[i] = din.readInt();");
+            w.println("                }");
+            w.println("                din.readFully(DATA);");
+            w.println("            }");
+            w.println("        } catch (java.io.IOException e) {");
+            w.println("            throw new java.io.UncheckedIOException(\"Could not read \" + INDEX + \".\", e);");
+            w.println("        }");
+            w.println("        BUFFERS = new java.nio.ByteBuffer[NAMES.length];");
+            w.println("        for (int i = 0; i < NAMES.length; i++) {");
+            w.println("            BUFFERS[i] = java.nio.ByteBuffer.wrap(DATA, OFFSETS[i], SIZES[i]).slice().asReadOnlyBuffer();");
+            w.println("        }");
+            w.println("    }");
+            w.println();
+            w.println("    private " + simpleName + "() {");
+            w.println("    }");
+            w.println();
+            w.println("    /** The position of a resource in the index, or a negative number if it is not there. */");
+            w.println("    public static int indexOf(String name) {");
+            w.println("        return java.util.Arrays.binarySearch(NAMES, name);");
+            w.println("    }");
+            w.println();
+            w.println("    public static boolean contains(String name) {");
+            w.println("        return indexOf(name) >= 0;");
+            w.println("    }");
+            w.println();
+            w.println("    public static int count() {");
+            w.println("        return NAMES.length;");
+            w.println("    }");
+            w.println();
+            w.println("    public static String name(int index) {");
+            w.println("        return NAMES[index];");
+            w.println("    }");
+            w.println();
+            w.println("    /** The size of a resource, or -1 if it is not in the index. */");
+            w.println("    public static int size(String name) {");
+            w.println("        int index = indexOf(name);");
+            w.println("        return index < 0 ? -1 : SIZES[index];");
+            w.println("    }");
+            w.println();
+            w.println("    /** The CRC-32 of a resource, or -1 if it is not in the index. */");
+            w.println("    public static long crc(String name) {");
+            w.println("        int index = indexOf(name);");
+            w.println("        return index < 0 ? -1 : CRCS[index] & 0xffffffffL;");
+            w.println("    }");
+            w.println();
+            w.println("    /** A read-only view of a resource, or null if it is not in the index. The content is not copied. */");
+            w.println("    public static java.nio.ByteBuffer buffer(String name) {");
+            w.println("        int index = indexOf(name);");
+            w.println("        return index < 0 ? null : BUFFERS[index].duplicate();");
+            w.println("    }");
+            w.println();
+            w.println("    /** A stream of a resource, or null if it is not in the index. The content is not copied. */");
+            w.println("    public static java.io.InputStream stream(String name) {");
+            w.println("        int index = indexOf(name);");
+            w.println("        return index < 0 ? null : new java.io.ByteArrayInputStream(DATA, OFFSETS[index], SIZES[index]);");
+            w.println("    }");
+            w.println("}");
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not generate resource index " + className + ".", e);
+        }
+    }
+
+    /**
+     * The index of the given resources, which must be sorted by name, as they
+     * are looked up with a binary search.
+     */
+    static byte[] index(Map<String, Path> resources) throws IOException {
+        var contents = new ArrayList<byte[]>();
+        var length = 0L;
+        for (var path : resources.values()) {
+            var content = Files.readAllBytes(path);
+            contents.add(content);
+            length += content.length;
+        }
+        if (length > Integer.MAX_VALUE - 8)
+            throw new IOException("The resources add up to " + length + " bytes, more than can be indexed.");
+
+        var out = new ByteArrayOutputStream();
+        var dout = new DataOutputStream(out);
+        dout.writeInt(MAGIC);
+        dout.writeShort(VERSION);
+        dout.writeInt(resources.size());
+        dout.writeInt((int) length);
+        var offset = 0;
+        var i = 0;
+        for (var name : resources.keySet()) {
+            var content = contents.get(i++);
+            var crc = new CRC32();
+            crc.update(content);
+            dout.writeUTF(name);
+            dout.writeInt(offset);
+            dout.writeInt(content.length);
+            dout.writeInt((int) crc.getValue());
+            offset += content.length;
+        }
+        for (var content : contents) {
+            dout.write(content);
+        }
+        dout.flush();
+        return out.toByteArray();
+    }
+}
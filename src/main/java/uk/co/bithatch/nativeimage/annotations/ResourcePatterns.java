@@ -0,0 +1,47 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+final class ResourcePatterns {
+
+    private ResourcePatterns() {
+    }
+
+    /**
+     * Convert a resource regular expression to the nearest glob, or return
+     * <code>null</code> if it uses constructs that cannot be expressed as one.
+     * <code>.*</code> becomes <code>**</code> when it makes up a whole path
+     * segment, otherwise <code>*</code>. Characters that are taken literally
+     * but would mean something in a glob, such as an escaped <code>\*</code>,
+     * are escaped.
+     */
+    static String toGlob(String regex) {
+        var glob = new StringBuilder();
+        var len = regex.length();
+        var i = 0;
+        while (i < len) {
+            if (regex.startsWith("\\Q", i)) {
+                var end = regex.indexOf("\\E", i + 2);
+                if (end == -1)
+                    end = len;
+                glob.append(ResourceEnumerator.escapeGlob(regex.substring(i + 2, end)));
+                i = end + 2;
+                continue;
+            }
+            var c = regex.charAt(i);
+            if (c == '\\' && i + 1 < len && ".$^()[]{}+*?|\\/-".indexOf(regex.charAt(i + 1)) != -1) {
+                glob.append(ResourceEnumerator.escapeGlob(regex.substring(i + 1, i + 2)));
+                i += 2;
+            } else if (c == '.' && i + 1 < len && regex.charAt(i + 1) == '*') {
+                var segmentStart = glob.length() == 0 || glob.charAt(glob.length() - 1) == '/';
+                var segmentEnd = i + 2 == len || regex.charAt(i + 2) == '/';
+                glob.append(segmentStart && segmentEnd ? "**" : "*");
+                i += 2;
+            } else if (".[]{}()+*?|^$\\".indexOf(c) != -1) {
+                return null;
+            } else {
+                glob.append(c);
+                i++;
+            }
+        }
+        return glob.toString();
+    }
+}
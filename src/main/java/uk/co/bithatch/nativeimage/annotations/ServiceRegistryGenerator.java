@@ -0,0 +1,84 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.processing.Filer;
+
+/**
+ * Generates a class that creates the providers of each service directly, in
+ * the order they are listed in <code>META-INF/services</code>, so that they can
+ * be found at startup without <code>ServiceLoader</code> reading and parsing the
+ * service files and looking up each provider by name.
+ */
+final class ServiceRegistryGenerator {
+
+    private final Filer filer;
+    private final String className;
+
+    ServiceRegistryGenerator(Filer filer, String className) {
+        this.filer = filer;
+        this.className = className;
+    }
+
+    String className() {
+        return className;
+    }
+
+    /**
+     * Generate the registry, once the sources given to the compiler have been
+     * processed. Providers generated by other processors after that are not
+     * included.
+     *
+     * @param services binary names of the providers of each service
+     */
+    void generate(Map<String, List<String>> services) throws IOException {
+        var idx = className.lastIndexOf('.');
+        var pkgName = idx == -1 ? "" : className.substring(0, idx);
+        var simpleName = className.substring(idx + 1);
+        try (var w = new PrintWriter(filer.createSourceFile(className).openWriter())) {
+            if (!pkgName.isEmpty()) {
+                w.println("package " + pkgName + ";");
+                w.println();
+            }
+            w.println("/* Generated by native-image-annotations */");
+            w.println("public final class " + simpleName + " {");
+            w.println();
+            w.println("    private " + simpleName + "() {");
+            w.println("    }");
+            w.println();
+            w.println("    /** The services that have providers, by name. */");
+            w.println("    public static java.util.Set<String> services() {");
+            w.print("        return java.util.Collections.unmodifiableSet(new java.util.LinkedHashSet<>(java.util.Arrays.asList(");
+            var first = true;
+            for (var service : services.keySet()) {
+                w.print((first ? "" : ", ") + BundleGenerator.literal(service));
+                first = false;
+            }
+            w.println(")));");
+            w.println("    }");
+            w.println();
+            w.println("    /** New instances of the providers of a service, or an empty list if it has none. */");
+            w.println("    @SuppressWarnings(\"unchecked\")");
+            w.println("    public static <S> java.util.List<S> load(Class<S> service) {");
+            w.println("        switch (service.getName()) {");
+            for (var service : services.entrySet()) {
+                w.println("        case " + BundleGenerator.literal(service.getKey()) + ":");
+                w.print("            return (java.util.List<S>) java.util.Arrays.asList(");
+                first = true;
+                for (var provider : service.getValue()) {
+                    w.print((first ? "" : ", ") + "new " + provider.replace('$', '.') + "()");
+                    first = false;
+                }
+                w.println(");");
+            }
+            w.println("        default:");
+            w.println("            return java.util.Collections.emptyList();");
+            w.println("        }");
+            w.println("    }");
+            w.println("}");
+        }
+    }
+}
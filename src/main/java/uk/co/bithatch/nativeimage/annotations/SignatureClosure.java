@@ -0,0 +1,263 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.type.WildcardType;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+final class SignatureClosure {
+    static final String DEFAULT_EXCLUDES = "java.,javax.,jdk.,sun.,com.sun.";
+
+    private final NativeImageProcessor processor;
+    private final Elements elements;
+    private final int depth;
+    private final List<String> packages;
+    private final List<String> excludes;
+    private final Set<String> visited = new HashSet<>();
+
+    SignatureClosure(NativeImageProcessor processor, Elements elements, int depth, List<String> packages, List<String> excludes) {
+        this.processor = processor;
+        this.elements = elements;
+        this.depth = depth;
+        this.packages = packages;
+        this.excludes = excludes;
+    }
+
+    void reset() {
+        visited.clear();
+    }
+
+    /**
+     * Register the types mentioned by the reflectable members of a type, and
+     * the types mentioned by their constructors and accessors in turn, up to
+     * the maximum depth. Each type is only visited once for each originating
+     * type, so the walk is linear in the size of the type graph.
+     */
+    void close(RoundEnvironment roundEnvironment, JsonArray array, String originatingType, TypeElement type,
+            JsonObject object, String condition) {
+        visited.add(key(originatingType, processor.toClassName(type), condition));
+        var queue = new ArrayDeque<TypeElement>();
+        for (var mirror : signatureTypes(reflectableMembers(type, object))) {
+            enqueue(queue, originatingType, mirror, condition);
+        }
+
+        for (var level = 1; level <= depth && !queue.isEmpty(); level++) {
+            for (var remaining = queue.size(); remaining > 0; remaining--) {
+                var next = queue.poll();
+                var members = marshallingMembers(next);
+                array.add(entry(roundEnvironment, next, members, condition));
+                if (level < depth) {
+                    for (var mirror : signatureTypes(members)) {
+                        enqueue(queue, originatingType, mirror, condition);
+                    }
+                }
+            }
+        }
+    }
+
+    private void enqueue(ArrayDeque<TypeElement> queue, String originatingType, TypeMirror mirror, String condition) {
+        var referenced = new ArrayList<TypeElement>();
+        collect(mirror, referenced);
+        for (var type : referenced) {
+            if (included(type) && visited.add(key(originatingType, processor.toClassName(type), condition)))
+                queue.add(type);
+        }
+    }
+
+    private static String key(String originatingType, String type, String condition) {
+        return originatingType + " " + type + " " + condition;
+    }
+
+    private boolean included(TypeElement type) {
+        var name = type.getQualifiedName().toString();
+        for (var exclude : excludes) {
+            if (name.startsWith(exclude))
+                return false;
+        }
+        if (packages.isEmpty())
+            return true;
+        for (var pkg : packages) {
+            if (name.startsWith(pkg))
+                return true;
+        }
+        return false;
+    }
+
+    private void collect(TypeMirror mirror, List<TypeElement> types) {
+        if (mirror.getKind() == TypeKind.ARRAY) {
+            collect(((ArrayType) mirror).getComponentType(), types);
+        } else if (mirror.getKind() == TypeKind.DECLARED) {
+            var declared = (DeclaredType) mirror;
+            types.add((TypeElement) declared.asElement());
+            for (var argument : declared.getTypeArguments()) {
+                collect(argument, types);
+            }
+        } else if (mirror.getKind() == TypeKind.WILDCARD) {
+            var wildcard = (WildcardType) mirror;
+            if (wildcard.getExtendsBound() != null)
+                collect(wildcard.getExtendsBound(), types);
+            if (wildcard.getSuperBound() != null)
+                collect(wildcard.getSuperBound(), types);
+        }
+    }
+
+    private static List<TypeMirror> signatureTypes(List<Element> members) {
+        var mirrors = new ArrayList<TypeMirror>();
+        for (var member : members) {
+            if (member instanceof ExecutableElement) {
+                var exec = (ExecutableElement) member;
+                mirrors.add(exec.getReturnType());
+                for (var param : exec.getParameters()) {
+                    mirrors.add(param.asType());
+                }
+            } else {
+                mirrors.add(member.asType());
+            }
+        }
+        return mirrors;
+    }
+
+    private List<Element> reflectableMembers(TypeElement type, JsonObject object) {
+        /* Methods and constructors by their signature, so other overloads are not included */
+        var methods = signatures(object.getAsJsonArray("methods"));
+        var fields = names(object.getAsJsonArray("fields"));
+        var members = new ArrayList<Element>();
+        for (var member : type.getEnclosedElements()) {
+            var isPublic = member.getModifiers().contains(Modifier.PUBLIC);
+            var name = member.getSimpleName().toString();
+            if (member.getKind() == ElementKind.METHOD) {
+                if (methods.contains(signature((ExecutableElement) member)) || flag(object, "allDeclaredMethods")
+                        || (isPublic && flag(object, "allPublicMethods")))
+                    members.add(member);
+            } else if (member.getKind() == ElementKind.CONSTRUCTOR) {
+                if (methods.contains(signature((ExecutableElement) member)) || flag(object, "allDeclaredConstructors")
+                        || (isPublic && flag(object, "allPublicConstructors")))
+                    members.add(member);
+            } else if (member.getKind() == ElementKind.FIELD) {
+                if (fields.contains(name) || flag(object, "allDeclaredFields")
+                        || (isPublic && flag(object, "allPublicFields")))
+                    members.add(member);
+            }
+        }
+        return members;
+    }
+
+    private List<Element> marshallingMembers(TypeElement type) {
+        /*
+         * What a marshaller needs to create an instance and get and set its
+         * properties. The no argument constructor if there is one, otherwise
+         * every public constructor, and the public getters and setters.
+         */
+        var members = new ArrayList<Element>();
+        var constructors = new ArrayList<ExecutableElement>();
+        ExecutableElement noArgs = null;
+        if (type.getKind() == ElementKind.CLASS && !type.getModifiers().contains(Modifier.ABSTRACT)) {
+            for (var ctor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+                if (ctor.getModifiers().contains(Modifier.PUBLIC)) {
+                    constructors.add(ctor);
+                    if (ctor.getParameters().isEmpty())
+                        noArgs = ctor;
+                }
+            }
+        }
+        if (noArgs != null)
+            members.add(noArgs);
+        else
+            members.addAll(constructors);
+
+        for (var method : ElementFilter.methodsIn(type.getEnclosedElements())) {
+            if (!method.getModifiers().contains(Modifier.PUBLIC) || method.getModifiers().contains(Modifier.STATIC))
+                continue;
+            var name = method.getSimpleName().toString();
+            var params = method.getParameters().size();
+            var returns = method.getReturnType().getKind();
+            if ((params == 0 && returns != TypeKind.VOID && (property(name, "get") || (property(name, "is") && returns == TypeKind.BOOLEAN)))
+                    || (params == 1 && property(name, "set")))
+                members.add(method);
+        }
+        if (type.getKind() == ElementKind.ENUM) {
+            for (var method : ElementFilter.methodsIn(elements.getAllMembers(type))) {
+                if (method.getSimpleName().contentEquals("valueOf") && method.getParameters().size() == 1)
+                    members.add(method);
+            }
+        }
+        return members;
+    }
+
+    private JsonObject entry(RoundEnvironment roundEnvironment, TypeElement type, List<Element> members, String condition) {
+        var object = new JsonObject();
+        object.addProperty("name", processor.toClassName(type));
+        NativeImageProcessor.addCondition(object, condition);
+        for (var member : members) {
+            if (member instanceof ExecutableElement)
+                processor.addMethodClassReflection(roundEnvironment, object, (ExecutableElement) member);
+            else
+                processor.addFieldClassReflection(roundEnvironment, object, (VariableElement) member);
+        }
+        return object;
+    }
+
+    private static boolean property(String name, String prefix) {
+        return name.length() > prefix.length() && name.startsWith(prefix)
+                && Character.isUpperCase(name.charAt(prefix.length()));
+    }
+
+    private static boolean flag(JsonObject object, String name) {
+        var value = object.get(name);
+        return value != null && value.getAsBoolean();
+    }
+
+    private String signature(ExecutableElement exec) {
+        var params = new ArrayList<String>();
+        for (var param : exec.getParameters()) {
+            params.add(processor.toTypeName(param.asType()));
+        }
+        return exec.getSimpleName() + "(" + String.join(",", params) + ")";
+    }
+
+    private static Set<String> signatures(JsonArray members) {
+        /* As written by the processor, no parameter types means no parameters */
+        var signatures = new HashSet<String>();
+        if (members != null) {
+            for (var member : members) {
+                var object = member.getAsJsonObject();
+                var params = new ArrayList<String>();
+                var parameterTypes = object.getAsJsonArray("parameterTypes");
+                if (parameterTypes != null)
+                    parameterTypes.forEach(p -> params.add(p.getAsString()));
+                signatures.add(object.get("name").getAsString() + "(" + String.join(",", params) + ")");
+            }
+        }
+        return signatures;
+    }
+
+    private static Set<String> names(JsonArray members) {
+        var names = new LinkedHashSet<String>();
+        if (members != null) {
+            for (var member : members) {
+                names.add(member.getAsJsonObject().get("name").getAsString());
+            }
+        }
+        return names;
+    }
+}
@@ -0,0 +1,15 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@Target({ ElementType.METHOD, ElementType.FIELD })
+@Retention(RetentionPolicy.CLASS)
+public @interface Upcall {
+
+	String returnType() default "";
+
+	String[] parameterTypes() default {};
+}
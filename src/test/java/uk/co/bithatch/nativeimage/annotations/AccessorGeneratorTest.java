@@ -0,0 +1,92 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.gson.JsonParser;
+
+class AccessorGeneratorTest {
+
+    private static final Map<String, String> SOURCES = Map.of(
+            "com.acme.Model", "package com.acme;\n"
+                    + "import uk.co.bithatch.nativeimage.annotations.Reflectable;\n"
+                    + "@Reflectable(accessors = true)\n"
+                    + "public class Model {\n"
+                    + "    @Reflectable public static final int SIZE = 3;\n"
+                    + "    @Reflectable String name;\n"
+                    + "    @Reflectable public Model(String name) { this.name = name; }\n"
+                    + "    @Reflectable int add(int a, int... more) { for (var m : more) a += m; return a; }\n"
+                    + "    @Reflectable public <T extends Number> java.util.List<T> wrap(T value) { return java.util.List.of(value); }\n"
+                    + "    @Reflectable static void touch() {}\n"
+                    + "    @Reflectable private void hidden() {}\n"
+                    + "    @Reflectable void secret(java.util.List<Secret> secrets) {}\n"
+                    + "    private static class Secret {}\n"
+                    + "    @Reflectable(accessors = true)\n"
+                    + "    public static class Inner {\n"
+                    + "        @Reflectable public String hello() { return \"hello\"; }\n"
+                    + "    }\n"
+                    + "}\n");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void callsMembersDirectly() throws Exception {
+        var classes = Fixtures.compile(dir, SOURCES, true, "-Xlint:all", "-Werror");
+
+        /* Only what cannot be called directly is left to reflection */
+        var config = Fixtures.configuration(classes.resolve("META-INF/native-image/native-image-annotations"));
+        assertEquals(Fixtures.normalize(JsonParser.parseString("["
+                + " { \"name\": \"com.acme.Model\", \"methods\": [ { \"name\": \"hidden\" },"
+                + " { \"name\": \"secret\", \"parameterTypes\": [ \"java.util.List\" ] } ] },"
+                + " { \"name\": \"com.acme.ModelAccessors\" },"
+                + " { \"name\": \"com.acme.Model$Inner\" },"
+                + " { \"name\": \"com.acme.Model_InnerAccessors\" },"
+                + " { \"name\": \"com.acme.Model$Secret\" } ]")),
+                config.get("reflect-config.json"));
+
+        try (var loader = Fixtures.loader(classes)) {
+            var accessors = loader.loadClass("com.acme.ModelAccessors");
+            var invoker = accessors.getMethod("invoker", String.class, String[].class);
+            var invoke = invoker.getReturnType().getMethod("invoke", Object.class, Object[].class);
+            var model = invoke.invoke(invoker.invoke(null, "<init>", new String[] { "java.lang.String" }), null,
+                    new Object[] { "first" });
+            assertEquals(6, invoke.invoke(invoker.invoke(null, "add", new String[] { "int", "int[]" }), model,
+                    new Object[] { 1, new int[] { 2, 3 } }));
+            assertEquals(List.of(4L), invoke.invoke(invoker.invoke(null, "wrap", new String[] { "java.lang.Number" }),
+                    model, new Object[] { 4L }));
+            assertNull(invoke.invoke(invoker.invoke(null, "touch", new String[0]), null, new Object[0]));
+            assertNull(invoker.invoke(null, "hidden", new String[0]));
+
+            var getter = accessors.getMethod("getter", String.class);
+            var get = getter.getReturnType().getMethod("get", Object.class);
+            var setter = accessors.getMethod("setter", String.class);
+            var set = setter.getReturnType().getMethod("set", Object.class, Object.class);
+            assertEquals("first", get.invoke(getter.invoke(null, "name"), model));
+            set.invoke(setter.invoke(null, "name"), model, "second");
+            assertEquals("second", get.invoke(getter.invoke(null, "name"), model));
+            assertEquals(3, get.invoke(getter.invoke(null, "SIZE"), (Object) null));
+            /* Final fields are read only */
+            assertNull(setter.invoke(null, "SIZE"));
+
+            var inner = loader.loadClass("com.acme.Model_InnerAccessors");
+            var innerInvoker = inner.getMethod("invoker", String.class, String[].class);
+            assertEquals("hello", invoke(innerInvoker, "hello", loader.loadClass("com.acme.Model$Inner")
+                    .getConstructor().newInstance()));
+        }
+    }
+
+    private static Object invoke(Method invoker, String name, Object target) throws Exception {
+        var found = invoker.invoke(null, name, new String[0]);
+        return invoker.getReturnType().getMethod("invoke", Object.class, Object[].class).invoke(found, target,
+                new Object[0]);
+    }
+}
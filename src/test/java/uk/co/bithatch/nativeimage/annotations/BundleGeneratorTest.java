@@ -0,0 +1,71 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ListResourceBundle;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ResourceBundle;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.gson.JsonParser;
+
+class BundleGeneratorTest {
+
+    private static final Map<String, String> SOURCES = Map.of(
+            "com.acme.Messages", "package com.acme;\n"
+                    + "import uk.co.bithatch.nativeimage.annotations.Bundle;\n"
+                    + "@Bundle(locales = { \"fr\", \"de-CH\" })\n"
+                    + "public class Messages {\n"
+                    + "}\n");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void generatesListResourceBundles() throws Exception {
+        var resources = dir.resolve("resources");
+        var pkg = Files.createDirectories(resources.resolve("com/acme"));
+        Files.writeString(pkg.resolve("Messages.properties"), "greeting=Hello\n", StandardCharsets.UTF_8);
+        Files.writeString(pkg.resolve("Messages_fr.properties"), "greeting=Bonjour à \"tous\"\\\\\nlines=un\\ndeux\n",
+                StandardCharsets.UTF_8);
+        /* Not UTF-8, so read as PropertyResourceBundle would */
+        Files.write(pkg.resolve("Messages_de_CH.properties"), "greeting=Grüezi\n".getBytes(StandardCharsets.ISO_8859_1));
+
+        var classes = Fixtures.compile(dir, SOURCES, true, "-Abundles=classes", "-Aresources.dirs=" + resources,
+                "-Xlint:all", "-Werror");
+
+        var config = classes.resolve("META-INF/native-image/native-image-annotations");
+        assertEquals(JsonParser.parseString("[ { \"name\": \"com.acme.Messages_de_CH\", \"methods\": [ { \"name\": \"<init>\", \"parameterTypes\": [] } ] },"
+                + " { \"name\": \"com.acme.Messages_fr\", \"methods\": [ { \"name\": \"<init>\", \"parameterTypes\": [] } ] } ]"),
+                Fixtures.configuration(config).get("reflect-config.json"));
+        /* Every locale is a class, so only the root bundle is left */
+        assertEquals(JsonParser.parseString("[ { \"name\": \"com.acme.Messages\" } ]"),
+                Fixtures.configuration(config).get("resource-config.json").getAsJsonObject().get("bundles"));
+
+        /* The root bundle is packaged as a resource */
+        Files.copy(pkg.resolve("Messages.properties"), classes.resolve("com/acme/Messages.properties"));
+        try (var loader = Fixtures.loader(classes)) {
+            var fr = ResourceBundle.getBundle("com.acme.Messages", Locale.FRENCH, loader);
+            assertEquals("com.acme.Messages_fr", fr.getClass().getName());
+            assertEquals(ListResourceBundle.class, fr.getClass().getSuperclass());
+            assertEquals("Bonjour à \"tous\"\\", fr.getString("greeting"));
+            assertEquals("un\ndeux", fr.getString("lines"));
+
+            var ch = ResourceBundle.getBundle("com.acme.Messages", new Locale("de", "CH"), loader);
+            assertEquals("com.acme.Messages_de_CH", ch.getClass().getName());
+            assertEquals("Grüezi", ch.getString("greeting"));
+
+            var root = ResourceBundle.getBundle("com.acme.Messages", Locale.ROOT, loader);
+            assertFalse(root instanceof ListResourceBundle);
+            assertEquals("Hello", root.getString("greeting"));
+        }
+    }
+}
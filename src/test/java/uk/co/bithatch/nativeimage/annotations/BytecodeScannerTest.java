@@ -0,0 +1,185 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.gson.JsonElement;
+
+class BytecodeScannerTest {
+
+    private static final Map<String, String> SOURCES = Map.of(
+            "com.acme.package-info", "@Condition(Runnable.class)\n"
+                    + "package com.acme;\n"
+                    + "import uk.co.bithatch.nativeimage.annotations.Condition;\n",
+            "com.acme.Model", "package com.acme;\n"
+                    + "import uk.co.bithatch.nativeimage.annotations.*;\n"
+                    + "@Reflectable(condition = Thread.class)\n"
+                    + "@TypeReflect(fields = true)\n"
+                    + "@Serialization\n"
+                    + "public class Model implements java.io.Serializable {\n"
+                    + "    @Reflectable private String name;\n"
+                    + "    @Reflectable public Model(String name, int[] sizes) {}\n"
+                    + "    @Reflectable public void call(java.util.Map.Entry<?, ?> entry, long[][] values) {}\n"
+                    + "    @Jni public native void run(String s);\n"
+                    + "    public static class Nested {}\n"
+                    + "    @Reflectable(all = true) public static class Annotated {}\n"
+                    + "}\n",
+            "com.acme.Service", "package com.acme;\n"
+                    + "import uk.co.bithatch.nativeimage.annotations.*;\n"
+                    + "@Proxy(with = AutoCloseable.class)\n"
+                    + "@Reflectable @Query(publicMethods = true) @Invoke(declaredConstructors = true)\n"
+                    + "public interface Service {\n"
+                    + "    void call();\n"
+                    + "}\n",
+            "com.acme.Others", "package com.acme;\n"
+                    + "import uk.co.bithatch.nativeimage.annotations.*;\n"
+                    + "@OtherReflectable(value = String.class, all = true)\n"
+                    + "@OtherReflectable(value = Integer.class, condition = Thread.class)\n"
+                    + "@OtherSerializable(java.util.ArrayList.class)\n"
+                    + "@Resource({ \"./data.bin\", \"config/.*\\\\.xml\" })\n"
+                    + "@Jni\n"
+                    + "public class Others {\n"
+                    + "}\n");
+
+    @TempDir
+    static Path dir;
+    static Path classes;
+    static Map<String, JsonElement> processed;
+
+    @BeforeAll
+    static void compile() throws IOException {
+        classes = Fixtures.compile(dir.resolve("compile"), SOURCES, true);
+        try (var walk = Files.walk(classes.resolve(NativeImageProcessor.RESOURCE_PATH))) {
+            var configs = walk.filter(p -> p.getFileName().toString().equals("reflect-config.json"))
+                    .collect(Collectors.toList());
+            assertEquals(1, configs.size());
+            processed = Fixtures.configuration(configs.get(0).getParent());
+            assertEquals(Set.of("jni-config.json", "proxy-config.json", "reflect-config.json", "resource-config.json",
+                    "serialization-config.json"), processed.keySet());
+        }
+        /* Configuration is then only written by the scanner */
+        try (var walk = Files.walk(classes.resolve("META-INF"))) {
+            for (var path : walk.sorted((a, b) -> b.compareTo(a)).collect(Collectors.toList()))
+                Files.delete(path);
+        }
+    }
+
+    @Test
+    void sameAsProcessorForDirectory() throws IOException {
+        assertEquals(processed, scan(dir.resolve("directory"), classes));
+    }
+
+    @Test
+    void sameAsProcessorForJar() throws IOException {
+        var deflated = dir.resolve("deflated.jar");
+        jar(deflated, classes, ZipEntry.DEFLATED, 0);
+        assertEquals(processed, scan(dir.resolve("deflated"), deflated));
+
+        var stored = dir.resolve("stored.jar");
+        jar(stored, classes, ZipEntry.STORED, 0);
+        assertEquals(processed, scan(dir.resolve("stored"), stored));
+    }
+
+    @Test
+    void sameAsProcessorForZip64Jar() throws IOException {
+        /* Enough entries that the count no longer fits the end of central directory record */
+        var jar = dir.resolve("zip64.jar");
+        jar(jar, classes, ZipEntry.STORED, 0xffff);
+        assertEquals(processed, scan(dir.resolve("zip64"), jar));
+    }
+
+    @Test
+    void firstInputWins() throws IOException {
+        var other = Fixtures.compile(dir.resolve("other"), Map.of("com.acme.Others", "package com.acme;\n"
+                + "import uk.co.bithatch.nativeimage.annotations.*;\n"
+                + "@Reflectable\n"
+                + "public class Others {\n"
+                + "}\n"), false);
+
+        var first = scan(dir.resolve("first"), classes, other);
+        assertEquals(processed, first);
+
+        var last = scan(dir.resolve("last"), other, classes);
+        var names = new HashSet<String>();
+        last.get("reflect-config.json").getAsJsonArray().forEach(e -> names.add(e.getAsJsonObject().get("name").getAsString()));
+        assertTrue(names.contains("com.acme.Others"));
+        assertFalse(names.contains("java.lang.String"));
+    }
+
+    @Test
+    void ignoresMissingInputs() throws IOException {
+        assertEquals(processed, scan(dir.resolve("missing"), dir.resolve("missing.jar"), classes));
+    }
+
+    @Test
+    void reportsUnreadableClasses() throws IOException {
+        var broken = dir.resolve("broken");
+        Files.createDirectories(broken.resolve("com/acme"));
+        Files.write(broken.resolve("com/acme/Broken.class"), new byte[] { (byte) 0xca, (byte) 0xfe, 0, 0 });
+        var scanner = new BytecodeScanner(1);
+        scanner.scan(List.of(broken, classes));
+        assertEquals(1, scanner.skipped().size());
+        assertTrue(scanner.skipped().get(0).startsWith(broken.resolve("com/acme/Broken.class").toString()));
+        /* Everything else is still written */
+        var output = dir.resolve("broken-output");
+        scanner.write(output, false);
+        assertEquals(processed, Fixtures.configuration(output));
+    }
+
+    @Test
+    void rejectsOtherFiles() throws IOException {
+        var file = Files.writeString(dir.resolve("text.jar"), "Not a jar");
+        assertThrows(IOException.class, () -> new BytecodeScanner(1).scan(List.of(file)));
+    }
+
+    private static Map<String, JsonElement> scan(Path output, Path... inputs) throws IOException {
+        var scanner = new BytecodeScanner(2);
+        scanner.scan(List.of(inputs));
+        scanner.write(output, false);
+        return Fixtures.configuration(output);
+    }
+
+    private static void jar(Path jar, Path classes, int method, int padding) throws IOException {
+        try (var out = new ZipOutputStream(Files.newOutputStream(jar))) {
+            out.setMethod(method);
+            for (var i = 0; i < padding; i++)
+                add(out, "padding/" + i + ".txt", new byte[0], method);
+            try (var walk = Files.walk(classes)) {
+                for (var file : walk.filter(Files::isRegularFile).sorted().collect(Collectors.toList()))
+                    add(out, classes.relativize(file).toString().replace('\\', '/'), Files.readAllBytes(file), method);
+            }
+        }
+    }
+
+    private static void add(ZipOutputStream out, String name, byte[] data, int method) throws IOException {
+        var entry = new ZipEntry(name);
+        if (method == ZipEntry.STORED) {
+            var crc = new CRC32();
+            crc.update(data);
+            entry.setSize(data.length);
+            entry.setCompressedSize(data.length);
+            entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        out.write(data);
+        out.closeEntry();
+    }
+}
@@ -0,0 +1,186 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import uk.co.bithatch.nativeimage.annotations.ClassFileReader.ClassInfo;
+
+class ClassFileReaderTest {
+
+    /*
+     * An annotation of the test's own in the package of this library, so that
+     * every kind of value the reader decodes can be given
+     */
+    private static final String FIXTURE = "package uk.co.bithatch.nativeimage.annotations;\n"
+            + "import java.lang.annotation.*;\n"
+            + "@Retention(RetentionPolicy.CLASS)\n"
+            + "public @interface Fixture {\n"
+            + "    boolean flag() default false;\n"
+            + "    int number() default 0;\n"
+            + "    String text() default \"\";\n"
+            + "    String[] texts() default {};\n"
+            + "    Class<?> type() default void.class;\n"
+            + "    Class<?>[] types() default {};\n"
+            + "    ElementType kind() default ElementType.TYPE;\n"
+            + "    ElementType[] kinds() default {};\n"
+            + "    Condition nested() default @Condition(Object.class);\n"
+            + "    OtherReflectable[] others() default {};\n"
+            + "}\n";
+
+    private static final String ANNOTATED = "package com.acme;\n"
+            + "import java.lang.annotation.ElementType;\n"
+            + "import uk.co.bithatch.nativeimage.annotations.*;\n"
+            + "@Deprecated\n"
+            + "@Fixture(flag = true, number = 42, text = \"t\", texts = \"single\", type = int.class,\n"
+            + "    types = { String[].class, java.util.Map.Entry.class, void.class },\n"
+            + "    kind = ElementType.METHOD, kinds = { ElementType.FIELD, ElementType.TYPE },\n"
+            + "    nested = @Condition(Runnable.class),\n"
+            + "    others = { @OtherReflectable(value = String.class, all = true), @OtherReflectable(Integer.class) })\n"
+            + "public class Annotated {\n"
+            + "    static final long LONG = 1L << 40;\n"
+            + "    static final double DOUBLE = 1.5;\n"
+            + "    static final String TEXT = \"constant\";\n"
+            + "    @Reflectable public int count;\n"
+            + "    public int ignored;\n"
+            + "    @Reflectable public Annotated() {}\n"
+            + "    @Reflectable public void call(int a, String[] b, long[][] c, java.util.Map.Entry<?, ?> d, double e) {}\n"
+            + "    public Runnable lambda() { return () -> System.out.println(LONG + DOUBLE + TEXT); }\n"
+            + "}\n";
+
+    private static final String OUTER = "package com.acme;\n"
+            + "public class Outer {\n"
+            + "    public static class Inner {}\n"
+            + "    class Member {}\n"
+            + "    interface Callback {}\n"
+            + "    Runnable anonymous = new Runnable() { public void run() {} };\n"
+            + "}\n";
+
+    private static final String PLAIN = "package com.acme;\n"
+            + "@Deprecated\n"
+            + "public class Plain {\n"
+            + "    @Deprecated public void call() {}\n"
+            + "}\n";
+
+    @TempDir
+    static Path dir;
+    static Path classes;
+
+    @BeforeAll
+    static void compile() throws IOException {
+        classes = Fixtures.compile(dir, Map.of("uk.co.bithatch.nativeimage.annotations.Fixture", FIXTURE,
+                "com.acme.Annotated", ANNOTATED, "com.acme.Outer", OUTER, "com.acme.Plain", PLAIN), false);
+    }
+
+    @Test
+    void readsValuesOfEveryKind() throws IOException {
+        var info = read("com/acme/Annotated");
+        assertEquals("com.acme.Annotated", info.name);
+        assertEquals("java.lang.Object", info.superName);
+        assertTrue(info.annotated());
+        /* Only the annotations of this library */
+        assertEquals(1, info.annotations.size());
+
+        var fixture = info.annotations.get(0);
+        assertEquals("uk.co.bithatch.nativeimage.annotations.Fixture", fixture.type);
+        assertTrue(fixture.bool("flag"));
+        /* Constants other than booleans are skipped over, but what follows is still read */
+        assertTrue(fixture.values.containsKey("number"));
+        assertNull(fixture.values.get("number"));
+        assertEquals("t", fixture.values.get("text"));
+        assertEquals(List.of("single"), fixture.strings("texts"));
+        assertEquals("int", fixture.type("type"));
+        assertEquals(List.of("java.lang.String[]", "java.util.Map$Entry", "void"), fixture.types("types"));
+        assertEquals("METHOD", fixture.values.get("kind"));
+        assertEquals(List.of("FIELD", "TYPE"), fixture.values.get("kinds"));
+
+        var nested = fixture.annotation("nested");
+        assertEquals(Condition.class.getName(), nested.type);
+        assertEquals("java.lang.Runnable", nested.type("value"));
+
+        var others = fixture.annotations("others");
+        assertEquals(2, others.size());
+        assertEquals("java.lang.String", others.get(0).type("value"));
+        assertTrue(others.get(0).bool("all"));
+        assertEquals("java.lang.Integer", others.get(1).type("value"));
+        assertFalse(others.get(1).bool("all"));
+        /* Defaults are not in the class file */
+        assertNull(others.get(1).type("condition"));
+    }
+
+    @Test
+    void readsAnnotatedMembers() throws IOException {
+        var info = read("com/acme/Annotated");
+        assertEquals(3, info.members.size());
+
+        var field = info.members.get(0);
+        assertEquals("count", field.name);
+        assertTrue(field.field);
+        assertNotNull(field.annotation(Reflectable.class));
+
+        var constructor = info.members.get(1);
+        assertEquals("<init>", constructor.name);
+        assertFalse(constructor.field);
+        assertEquals(List.of(), constructor.parameterTypes());
+
+        var method = info.members.get(2);
+        assertEquals("call", method.name);
+        assertEquals(List.of("int", "java.lang.String[]", "long[][]", "java.util.Map$Entry", "double"),
+                method.parameterTypes());
+    }
+
+    @Test
+    void readsMemberClasses() throws IOException {
+        var outer = read("com/acme/Outer");
+        assertFalse(outer.annotated());
+        assertEquals(Set.of("com.acme.Outer$Inner", "com.acme.Outer$Member", "com.acme.Outer$Callback"),
+                outer.memberClasses.keySet());
+        assertTrue((outer.memberClasses.get("com.acme.Outer$Inner") & ClassFileReader.ACC_STATIC) != 0);
+        assertTrue((outer.memberClasses.get("com.acme.Outer$Callback") & ClassFileReader.ACC_INTERFACE) != 0);
+        assertNull(outer.outerName);
+
+        assertEquals("com.acme.Outer", read("com/acme/Outer$Inner").outerName);
+        /* Anonymous classes are not members */
+        assertNull(read("com/acme/Outer$1").outerName);
+    }
+
+    @Test
+    void skipsOtherAnnotations() throws IOException {
+        var info = read("com/acme/Plain");
+        assertFalse(info.annotated());
+        assertTrue(info.annotations.isEmpty());
+        assertTrue(info.members.isEmpty());
+    }
+
+    @Test
+    void convertsDescriptors() {
+        assertEquals("boolean", ClassFileReader.typeName("Z"));
+        assertEquals("char[][]", ClassFileReader.typeName("[[C"));
+        assertEquals("java.lang.String", ClassFileReader.typeName("Ljava/lang/String;"));
+        assertEquals("void", ClassFileReader.typeName("V"));
+    }
+
+    @Test
+    void rejectsOtherFiles() {
+        assertThrows(IllegalArgumentException.class, () -> ClassFileReader.read(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 0, 0, 0, 0, 0, 0 })));
+    }
+
+    private static ClassInfo read(String name) throws IOException {
+        return ClassFileReader.read(ByteBuffer.wrap(Files.readAllBytes(classes.resolve(name + ".class"))));
+    }
+}
@@ -0,0 +1,120 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import javax.tools.ToolProvider;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Compiles sources with the system compiler, against the annotations under
+ * test, so that tests read real class files.
+ */
+final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    /**
+     * Compile sources, given as class names and their content, to
+     * <code>classes</code> under the directory. With <code>process</code>,
+     * the processor is run too and writes its configuration there.
+     */
+    static Path compile(Path dir, Map<String, String> sources, boolean process, String... options) throws IOException {
+        var src = dir.resolve("src");
+        var classes = dir.resolve("classes");
+        var files = new ArrayList<String>();
+        for (var source : sources.entrySet()) {
+            var file = src.resolve(source.getKey().replace('.', '/') + ".java");
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, source.getValue());
+            files.add(file.toString());
+        }
+        Files.createDirectories(classes);
+
+        var path = location(Reflectable.class) + File.pathSeparator + location(JsonObject.class);
+        var args = new ArrayList<String>(Arrays.asList("-d", classes.toString(), "-s", dir.resolve("generated").toString(),
+                "-cp", path, "-Xlint:-options", "-Averbosity=off"));
+        if (process)
+            args.addAll(Arrays.asList("-processorpath", path, "-processor", NativeImageProcessor.class.getName()));
+        else
+            args.add("-proc:none");
+        args.addAll(Arrays.asList(options));
+        args.addAll(files);
+
+        var out = new ByteArrayOutputStream();
+        var result = ToolProvider.getSystemJavaCompiler().run(null, out, out, args.toArray(new String[0]));
+        if (result != 0)
+            throw new IllegalStateException("Compilation failed. " + out);
+        return classes;
+    }
+
+    /**
+     * A class loader for compiled classes, with the annotations and Gson
+     * loaded from the parent.
+     */
+    static URLClassLoader loader(Path classes) throws IOException {
+        return new URLClassLoader(new URL[] { classes.toUri().toURL() }, Fixtures.class.getClassLoader());
+    }
+
+    static String location(Class<?> clazz) {
+        try {
+            return Paths.get(clazz.getProtectionDomain().getCodeSource().getLocation().toURI()).toString();
+        } catch (URISyntaxException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The configuration files in a directory, parsed and with every array
+     * sorted and object ordered, so that they can be compared regardless of
+     * the order entries were written in.
+     */
+    static Map<String, JsonElement> configuration(Path dir) throws IOException {
+        var files = new TreeMap<String, JsonElement>();
+        try (var list = Files.list(dir)) {
+            for (var file : list.filter(p -> p.toString().endsWith("-config.json")).collect(Collectors.toList())) {
+                files.put(file.getFileName().toString(),
+                        normalize(JsonParser.parseString(Files.readString(file, StandardCharsets.UTF_8))));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Sort every array and order every object, as {@link #configuration(Path)}
+     * does.
+     */
+    static JsonElement normalize(JsonElement element) {
+        if (element.isJsonArray()) {
+            var elements = new ArrayList<JsonElement>();
+            element.getAsJsonArray().forEach(e -> elements.add(normalize(e)));
+            elements.sort((a, b) -> a.toString().compareTo(b.toString()));
+            var array = new JsonArray();
+            elements.forEach(array::add);
+            return array;
+        } else if (element.isJsonObject()) {
+            var object = new JsonObject();
+            new TreeMap<>(element.getAsJsonObject().asMap()).forEach((k, v) -> object.add(k, normalize(v)));
+            return object;
+        }
+        return element;
+    }
+}
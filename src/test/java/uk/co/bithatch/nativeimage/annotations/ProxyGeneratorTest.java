@@ -0,0 +1,70 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ProxyGeneratorTest {
+
+    private static final Map<String, String> SOURCES = Map.of(
+            "com.acme.Named", "package com.acme;\n"
+                    + "import uk.co.bithatch.nativeimage.annotations.Proxy;\n"
+                    + "@Proxy(with = Sized.class)\n"
+                    + "public interface Named extends java.util.function.Supplier<String>, Comparable<Named> {\n"
+                    + "    void rename(String... names) throws java.io.IOException;\n"
+                    + "    default String describe() { return get(); }\n"
+                    + "}\n",
+            "com.acme.Sized", "package com.acme;\n"
+                    + "public interface Sized extends Mapper<Integer, java.util.List<String>> {\n"
+                    + "    int size();\n"
+                    + "}\n",
+            "com.acme.Mapper", "package com.acme;\n"
+                    + "public interface Mapper<K, V> {\n"
+                    + "    V map(K key) throws Exception;\n"
+                    + "}\n");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void implementsGenericInterfaces() throws Exception {
+        var classes = Fixtures.compile(dir, SOURCES, true, "-Aproxies=static", "-Xlint:all", "-Werror");
+        /* No dynamic proxy configuration is needed */
+        assertFalse(Files.exists(classes.resolve("META-INF/native-image/native-image-annotations/proxy-config.json")));
+
+        try (var loader = Fixtures.loader(classes)) {
+            var type = loader.loadClass("com.acme.NamedStaticProxy");
+            var handler = type.getClasses()[0];
+            var calls = new ArrayList<String>();
+            var proxy = type.getConstructor(handler).newInstance(java.lang.reflect.Proxy.newProxyInstance(loader,
+                    new Class<?>[] { handler }, (p, m, args) -> {
+                        var method = (String) type.getMethod("method", int.class).invoke(null, args[1]);
+                        calls.add(method);
+                        return method.startsWith("compareTo") ? 0 : method.startsWith("size") ? 3 : "value";
+                    }));
+
+            assertEquals("value", ((Supplier<?>) proxy).get());
+            assertEquals("value", type.getMethod("describe").invoke(proxy));
+            assertEquals(0, type.getMethod("compareTo", loader.loadClass("com.acme.Named")).invoke(proxy, proxy));
+            assertEquals(3, type.getMethod("size").invoke(proxy));
+            assertEquals(List.of("get()", "describe()", "compareTo(com.acme.Named)", "size()"), calls);
+
+            /* Methods are identified by their signatures as implemented */
+            var methodId = type.getMethod("methodId", String.class, String[].class);
+            assertTrue((int) methodId.invoke(null, "map", new String[] { "java.lang.Integer" }) >= 0);
+            assertTrue((int) methodId.invoke(null, "rename", new String[] { "java.lang.String[]" }) >= 0);
+            assertEquals(-1, (int) methodId.invoke(null, "compareTo", new String[] { "java.lang.Object" }));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ResourceIndexGeneratorTest {
+
+    private static final Map<String, String> SOURCES = Map.of(
+            "com.acme.Templates", "package com.acme;\n"
+                    + "import uk.co.bithatch.nativeimage.annotations.Resource;\n"
+                    + "@Resource({ \"./page.html\", \"com/acme/data/.*\" })\n"
+                    + "public class Templates {\n"
+                    + "}\n");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void readsIndexedResources() throws Exception {
+        var resources = dir.resolve("resources");
+        var page = "<html>é</html>".getBytes(StandardCharsets.UTF_8);
+        var binary = new byte[70000];
+        for (var i = 0; i < binary.length; i++)
+            binary[i] = (byte) i;
+        write(resources.resolve("com/acme/Templates/page.html"), page);
+        write(resources.resolve("com/acme/data/b.bin"), binary);
+        write(resources.resolve("com/acme/data/a.txt"), new byte[0]);
+        write(resources.resolve("com/acme/other.txt"), new byte[] { 1 });
+
+        var classes = Fixtures.compile(dir, SOURCES, true, "-Aresources.index=com.acme.Resources",
+                "-Aresources.dirs=" + resources, "-Xlint:all", "-Werror");
+        assertTrue(Files.exists(classes.resolve("META-INF/native-image/native-image-annotations/" + ResourceIndexGenerator.INDEX_FILE)));
+
+        try (var loader = Fixtures.loader(classes)) {
+            var type = loader.loadClass("com.acme.Resources");
+            var names = new ArrayList<String>();
+            for (var i = 0; i < (int) type.getMethod("count").invoke(null); i++)
+                names.add((String) type.getMethod("name", int.class).invoke(null, i));
+            /* Sorted, and only what was matched */
+            assertEquals(List.of("com/acme/Templates/page.html", "com/acme/data/a.txt", "com/acme/data/b.bin"), names);
+
+            var buffer = (ByteBuffer) type.getMethod("buffer", String.class).invoke(null, "com/acme/data/b.bin");
+            assertTrue(buffer.isReadOnly());
+            var content = new byte[buffer.remaining()];
+            buffer.get(content);
+            assertArrayEquals(binary, content);
+            assertEquals(binary.length, type.getMethod("size", String.class).invoke(null, "com/acme/data/b.bin"));
+
+            try (var in = (InputStream) type.getMethod("stream", String.class).invoke(null, "com/acme/Templates/page.html")) {
+                assertArrayEquals(page, in.readAllBytes());
+            }
+            var crc = new CRC32();
+            crc.update(page);
+            assertEquals(crc.getValue(), type.getMethod("crc", String.class).invoke(null, "com/acme/Templates/page.html"));
+            assertEquals(0, type.getMethod("size", String.class).invoke(null, "com/acme/data/a.txt"));
+
+            assertFalse((boolean) type.getMethod("contains", String.class).invoke(null, "com/acme/other.txt"));
+            assertNull(type.getMethod("buffer", String.class).invoke(null, "com/acme/other.txt"));
+            assertNull(type.getMethod("stream", String.class).invoke(null, "com/acme/other.txt"));
+            assertEquals(-1, type.getMethod("size", String.class).invoke(null, "com/acme/other.txt"));
+            assertEquals(-1L, type.getMethod("crc", String.class).invoke(null, "com/acme/other.txt"));
+        }
+    }
+
+    private static void write(Path file, byte[] content) throws Exception {
+        Files.createDirectories(file.getParent());
+        Files.write(file, content);
+    }
+}
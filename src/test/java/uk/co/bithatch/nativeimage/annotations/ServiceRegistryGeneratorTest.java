@@ -0,0 +1,78 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class ServiceRegistryGeneratorTest {
+
+    private static final Map<String, String> SOURCES = Map.of(
+            "com.acme.Plugin", "package com.acme;\n"
+                    + "public interface Plugin {\n"
+                    + "}\n",
+            "com.acme.Codec", "package com.acme;\n"
+                    + "public interface Codec {\n"
+                    + "}\n",
+            "com.acme.Legacy", "package com.acme;\n"
+                    + "public class Legacy implements Plugin {\n"
+                    + "}\n",
+            "com.acme.Beta", "package com.acme;\n"
+                    + "import uk.co.bithatch.nativeimage.annotations.ServiceProvider;\n"
+                    + "@ServiceProvider({ Plugin.class, Codec.class })\n"
+                    + "public class Beta implements Plugin, Codec {\n"
+                    + "}\n",
+            "com.acme.Alpha", "package com.acme;\n"
+                    + "import uk.co.bithatch.nativeimage.annotations.ServiceProvider;\n"
+                    + "@ServiceProvider(Plugin.class)\n"
+                    + "public class Alpha implements Plugin {\n"
+                    + "}\n",
+            "com.acme.Outer", "package com.acme;\n"
+                    + "import uk.co.bithatch.nativeimage.annotations.ServiceProvider;\n"
+                    + "public class Outer {\n"
+                    + "    @ServiceProvider(Plugin.class)\n"
+                    + "    public static class Gamma implements Plugin {\n"
+                    + "    }\n"
+                    + "}\n");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void loadsProvidersInServicesFileOrder() throws Exception {
+        /* Listed by hand, as if copied from the resources */
+        var services = Files.createDirectories(dir.resolve("classes/META-INF/services"));
+        Files.writeString(services.resolve("com.acme.Plugin"), "com.acme.Legacy # by hand\n");
+
+        var classes = Fixtures.compile(dir, SOURCES, true, "-Aservices.registry=com.acme.Services", "-Xlint:all",
+                "-Werror");
+
+        try (var loader = Fixtures.loader(classes)) {
+            var registry = loader.loadClass("com.acme.Services");
+            assertEquals(Set.of("com.acme.Codec", "com.acme.Plugin"), registry.getMethod("services").invoke(null));
+
+            var load = registry.getMethod("load", Class.class);
+            for (var service : List.of("com.acme.Plugin", "com.acme.Codec")) {
+                var type = loader.loadClass(service);
+                /* ServiceLoader's order, which is that of the services file */
+                var expected = Files.readAllLines(services.resolve(service)).stream()
+                        .map(l -> l.replaceFirst("#.*", "").trim()).filter(l -> !l.isEmpty())
+                        .collect(Collectors.toList());
+                var loaded = ((List<?>) load.invoke(null, type)).stream().map(p -> p.getClass().getName())
+                        .collect(Collectors.toList());
+                assertEquals(expected, loaded);
+            }
+            assertEquals(List.of("com.acme.Legacy", "com.acme.Alpha", "com.acme.Beta", "com.acme.Outer$Gamma"),
+                    ((List<?>) load.invoke(null, loader.loadClass("com.acme.Plugin"))).stream()
+                            .map(p -> p.getClass().getName()).collect(Collectors.toList()));
+            assertEquals(List.of(), load.invoke(null, Runnable.class));
+        }
+    }
+}
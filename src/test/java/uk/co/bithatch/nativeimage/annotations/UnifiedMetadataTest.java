@@ -0,0 +1,59 @@
+package uk.co.bithatch.nativeimage.annotations;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.google.gson.JsonParser;
+
+class UnifiedMetadataTest {
+
+    private static final Map<String, String> SOURCES = Map.of(
+            "com.acme.Model", "package com.acme;\n"
+                    + "import uk.co.bithatch.nativeimage.annotations.*;\n"
+                    + "@Reflectable(all = true)\n"
+                    + "@Resource({ \"./x*.txt\", \"data/a\\\\*b\\\\.bin\", \"data/.*\\\\.bin\" })\n"
+                    + "public class Model {\n"
+                    + "}\n");
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void convertsPatternsToGlobs() {
+        assertEquals("com/acme/**", ResourcePatterns.toGlob("com/acme/.*"));
+        assertEquals("com/acme/*.xml", ResourcePatterns.toGlob("com/acme/.*\\.xml"));
+        assertEquals("com/acme/a.txt", ResourcePatterns.toGlob("\\Qcom/acme/a.txt\\E"));
+        /* What is literal in the expression stays literal in the glob */
+        assertEquals("com/acme/a\\*b\\?.txt", ResourcePatterns.toGlob("com/acme/a\\*b\\?\\.txt"));
+        assertEquals("com/acme/\\[x\\]\\*.txt", ResourcePatterns.toGlob("\\Qcom/acme/[x]*.txt\\E"));
+        assertNull(ResourcePatterns.toGlob("com/acme/(a|b)\\.txt"));
+    }
+
+    @Test
+    void writesOnlyWhatTheSchemaHas() throws Exception {
+        var classes = Fixtures.compile(dir, SOURCES, true, "-Aformat=unified");
+        var metadata = JsonParser.parseString(Files.readString(classes.resolve(
+                "META-INF/native-image/native-image-annotations/" + NativeImageProcessor.UNIFIED_FILE))).getAsJsonObject();
+
+        var reflection = metadata.getAsJsonArray("reflection").get(0).getAsJsonObject();
+        assertEquals("com.acme.Model", reflection.get("type").getAsString());
+        /* Everything registered may be queried */
+        for (var key : reflection.keySet()) {
+            assertFalse(key.startsWith("queryAll"), key);
+        }
+        assertTrue(reflection.get("allDeclaredMethods").getAsBoolean());
+
+        assertEquals(Fixtures.normalize(JsonParser.parseString("[ { \"glob\": \"com/acme/Model/x\\\\*.txt\" },"
+                + " { \"glob\": \"data/a\\\\*b.bin\" }, { \"glob\": \"data/*.bin\" } ]")),
+                Fixtures.normalize(metadata.get("resources")));
+    }
+}